@@ -0,0 +1,84 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pluginapi.operation.OperationResult;
+
+/**
+ * The cursor diagnostic operations over many simulated sessions, returning
+ * either every row (<code>topN</code> 0) or the first hundred.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CursorOperationBenchmark {
+
+    @Param({ "listOpenCursorsBySession", "listOpenCursorsByUserByMachine", "listCachedCursorsBySession" })
+    public String operation;
+
+    @Param({ "10000" })
+    public int sessions;
+
+    @Param({ "0", "100" })
+    public int topN;
+
+    private OracleConnectionPool pool;
+    private OracleDiagnosticOperation diagnostic;
+    private Configuration parameters;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StubOracleDriver.install(OracleBenchmarkFixture.database(OracleBenchmarkFixture.serverMetrics(),
+            this.sessions, 0));
+        this.pool = new OracleConnectionPool(OracleBenchmarkFixture.pluginConfiguration());
+        this.diagnostic = OracleDiagnosticOperation.forName(this.operation);
+        this.parameters = new Configuration();
+        this.parameters.put(new PropertySimple(OracleDiagnosticOperation.PARAMETER_TOP_N, this.topN));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.pool.close();
+    }
+
+    @Benchmark
+    public OperationResult invoke() throws Exception {
+        return this.diagnostic.invoke(this.pool, this.parameters);
+    }
+}
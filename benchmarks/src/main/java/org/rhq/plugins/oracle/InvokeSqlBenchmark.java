@@ -0,0 +1,82 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pluginapi.operation.OperationResult;
+
+/**
+ * The invokeSql schema operation over a large result, in each output format.
+ * The output size limit may end the larger runs before the row limit does,
+ * just as it would against a real database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class InvokeSqlBenchmark {
+
+    @Param({ "html", "csv", "list" })
+    public String outputFormat;
+
+    @Param({ "1000", "100000" })
+    public int rows;
+
+    private OracleConnectionPool pool;
+    private Configuration parameters;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StubOracleDriver.install(OracleBenchmarkFixture.database(OracleBenchmarkFixture.serverMetrics(), 0,
+            this.rows));
+        this.pool = new OracleConnectionPool(OracleBenchmarkFixture.pluginConfiguration());
+        this.parameters = new Configuration();
+        this.parameters.put(new PropertySimple("sql", "SELECT * FROM BENCH_ROWS"));
+        this.parameters.put(new PropertySimple("outputFormat", this.outputFormat));
+        this.parameters.put(new PropertySimple("maxRows", this.rows));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.pool.close();
+    }
+
+    @Benchmark
+    public OperationResult invokeSql() throws Exception {
+        return OracleSchemaComponent.invokeSql(this.pool, this.parameters);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Builds what the benchmarks run against: the Oracle Server metrics of the
+ * plugin descriptor, a plugin configuration pointing at the
+ * {@link StubOracleDriver}, and a {@link StubOracleDatabase} answering the
+ * plugin's queries with plausible data.
+ */
+public class OracleBenchmarkFixture {
+
+    private static final String DESCRIPTOR = "META-INF/rhq-plugin.xml";
+    private static final String SERVER = "Oracle Server";
+
+    private static final String[] WAIT_CLASSES = { "Other", "Application", "Configuration", "Administrative",
+        "Concurrency", "Commit", "Idle", "Network", "User I/O", "System I/O", "Scheduler", "Cluster", "Queueing" };
+
+    private static final long STARTUP_TIME = System.currentTimeMillis() / 1000 - 86400;
+
+    /** The number of RAC instances in GV$INSTANCE. */
+    private static final int INSTANCES = 2;
+
+    private OracleBenchmarkFixture() {
+    }
+
+    /**
+     * @return a plugin configuration connecting through the stub driver, with
+     * the background samplers switched off so they do not compete with the
+     * benchmark thread
+     */
+    public static Configuration pluginConfiguration() {
+        Configuration configuration = new Configuration();
+        configuration.put(new PropertySimple("driverClass", StubOracleDriver.class.getName()));
+        configuration.put(new PropertySimple("host", "localhost"));
+        configuration.put(new PropertySimple("port", "1521"));
+        configuration.put(new PropertySimple("sid", "BENCH"));
+        configuration.put(new PropertySimple("principal", "rhq"));
+        configuration.put(new PropertySimple("credentials", "rhq"));
+        configuration.put(new PropertySimple(OracleCursorLeakDetector.PROPERTY_SAMPLE_INTERVAL, "0"));
+        configuration.put(new PropertySimple(OracleTopSqlSampler.PROPERTY_SAMPLE_INTERVAL, "0"));
+        configuration.put(new PropertySimple(OracleActiveSessionSampler.PROPERTY_SAMPLE_INTERVAL, "0"));
+        return configuration;
+    }
+
+    /**
+     * @return a schedule for every metric the descriptor declares directly on
+     * the Oracle Server
+     */
+    public static Set<MeasurementScheduleRequest> serverMetrics() throws Exception {
+        Set<MeasurementScheduleRequest> metrics = new LinkedHashSet<MeasurementScheduleRequest>();
+        Element server = findServer();
+        int scheduleId = 1;
+        for (Node node = server.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if ((node instanceof Element) && "metric".equals(node.getLocalName())) {
+                Element metric = (Element) node;
+                DataType dataType = "trait".equals(metric.getAttribute("dataType")) ? DataType.TRAIT
+                    : DataType.MEASUREMENT;
+                metrics.add(new MeasurementScheduleRequest(scheduleId++, metric.getAttribute("property"), 60000L,
+                    true, dataType));
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @param metrics the scheduled metrics; their names become the V$STATNAME
+     * and V$PARAMETER rows
+     * @param sessions the number of sessions in V$SESSION
+     * @param sqlRows the number of rows returned to invokeSql
+     * @return a database answering every query the plugin makes
+     */
+    public static StubOracleDatabase database(Set<MeasurementScheduleRequest> metrics, int sessions, int sqlRows) {
+        Set<String> statistics = new LinkedHashSet<String>();
+        final Set<String> clusterStatistics = new LinkedHashSet<String>();
+        List<Object[]> parameters = new ArrayList<Object[]>();
+        for (MeasurementScheduleRequest metric : metrics) {
+            String name = metric.getName();
+            int ratio = OracleRateCalculator.getRatio(name);
+            if (OracleClusterSnapshot.isClusterMetric(name)) {
+                if (name.startsWith(OracleClusterSnapshot.CLUSTER_TOTAL_PREFIX)
+                    && !OracleWaitCollector.isWaitMetric(name)) {
+                    clusterStatistics.add(OracleRateCalculator.getRateStatistic(name.substring(
+                        OracleClusterSnapshot.CLUSTER_TOTAL_PREFIX.length())));
+                }
+            } else if (metric.getDataType() == DataType.TRAIT) {
+                parameters.add(new Object[] { name, "TRUE" });
+            } else if (OracleRateCalculator.isRate(name)) {
+                statistics.add(OracleRateCalculator.getRateStatistic(name));
+            } else if (ratio >= 0) {
+                for (String statistic : OracleRateCalculator.getRatioStatistics(ratio)) {
+                    statistics.add(statistic);
+                }
+            } else {
+                statistics.add(name);
+                parameters.add(new Object[] { name, "100" });
+            }
+        }
+
+        Object[][] statNames = new Object[statistics.size()][];
+        int number = 0;
+        for (String statistic : statistics) {
+            statNames[number] = new Object[] { number, statistic };
+            number++;
+        }
+
+        final AtomicLong collections = new AtomicLong();
+        StubOracleDatabase database = new StubOracleDatabase();
+        database.answer("SELECT 1 FROM DUAL", new StubOracleDatabase.Table(new String[] { "1" },
+            new Object[][] { { 1 } }));
+        database.answer("FROM V$STATNAME", new StubOracleDatabase.Table(new String[] { "STATISTIC#", "NAME" },
+            statNames));
+        database.answer("FROM V$SYSSTAT", new StubOracleDatabase.Answer() {
+            public StubOracleDatabase.Table answer(Object[] parameters) {
+                long collection = collections.incrementAndGet();
+                List<Object[]> rows = new ArrayList<Object[]>(parameters.length + 1);
+                rows.add(new Object[] { -1, STARTUP_TIME });
+                for (Object parameter : parameters) {
+                    int statistic = ((Number) parameter).intValue();
+                    if (statistic >= 0) {
+                        rows.add(new Object[] { statistic, (double) collection * (statistic + 1) * 1000 });
+                    }
+                }
+                return new StubOracleDatabase.Table(new String[] { "STATISTIC#", "VALUE" }, rows
+                    .toArray(new Object[rows.size()][]));
+            }
+        });
+        database.answer("FROM V$SYSTEM_WAIT_CLASS", new StubOracleDatabase.Answer() {
+            public StubOracleDatabase.Table answer(Object[] parameters) {
+                long collection = collections.get();
+                Object[][] rows = new Object[WAIT_CLASSES.length][];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = new Object[] { i, WAIT_CLASSES[i], (double) collection * (i + 1) * 50,
+                        (double) collection * (i + 1) * 20 };
+                }
+                return new StubOracleDatabase.Table(new String[] { "WAIT_CLASS#", "WAIT_CLASS", "TOTAL_WAITS",
+                    "TIME_WAITED" }, rows);
+            }
+        });
+        database.answer("FROM GV$INSTANCE i", new StubOracleDatabase.Answer() {
+            public StubOracleDatabase.Table answer(Object[] parameters) {
+                long collection = collections.get();
+                List<Object[]> rows = new ArrayList<Object[]>();
+                for (int instance = 1; instance <= INSTANCES; instance++) {
+                    rows.add(new Object[] { instance, "I", "BENCH" + instance, "node" + instance, "OPEN",
+                        STARTUP_TIME, null });
+                    int i = 0;
+                    for (String statistic : clusterStatistics) {
+                        rows.add(new Object[] { instance, "S", statistic, null, null,
+                            (double) collection * (++i) * 1000, null });
+                    }
+                    for (i = 0; i < WAIT_CLASSES.length; i++) {
+                        if (!"Idle".equals(WAIT_CLASSES[i])) {
+                            rows.add(new Object[] { instance, "W", WAIT_CLASSES[i], null, null,
+                                (double) collection * (i + 1) * 50, (double) collection * (i + 1) * 20 });
+                        }
+                    }
+                }
+                return new StubOracleDatabase.Table(new String[] { "INST_ID", "KIND", "NAME", "HOST_NAME",
+                    "STATUS", "VALUE", "TIME_WAITED" }, rows.toArray(new Object[rows.size()][]));
+            }
+        });
+        database.answer("FROM V$INSTANCE", new StubOracleDatabase.Table(new String[] { "STARTUP_TIME" },
+            new Object[][] { { "20260101000000" } }));
+        database.answer("FROM V$PARAMETER", new StubOracleDatabase.Table(new String[] { "NAME", "VALUE" },
+            parameters.toArray(new Object[parameters.size()][])));
+        database.answer("SYS.DBA_DATA_FILES", new StubOracleDatabase.Table(new String[] { "DATA", "FREE", "TEMP" },
+            new Object[][] { { 5e11, 1e11, 2e10 } }));
+
+        database.answer("'opened cursors current' GROUP BY", cursorsByUser(sessions));
+        database.answer("'opened cursors current'", cursors(sessions, new String[] { "SID", "USERNAME",
+            "SERIAL_NUM", "NUM_CURSORS" }, false));
+        database.answer("'session cursor cache count'", cursors(sessions, new String[] { "USERNAME", "SID",
+            "SERIAL_NUM", "NUM_CURSORS" }, true));
+        database.answer("FROM BENCH_ROWS", rows(sqlRows));
+        return database;
+    }
+
+    /**
+     * Other plugins on the class path have descriptors too, so look for the
+     * one declaring the Oracle Server.
+     */
+    private static Element findServer() throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Enumeration<URL> descriptors = OracleServerComponent.class.getClassLoader().getResources(DESCRIPTOR);
+        while (descriptors.hasMoreElements()) {
+            InputStream in = descriptors.nextElement().openStream();
+            Document descriptor;
+            try {
+                descriptor = factory.newDocumentBuilder().parse(in);
+            } finally {
+                in.close();
+            }
+            for (Node node = descriptor.getDocumentElement().getFirstChild(); node != null; node = node
+                .getNextSibling()) {
+                if ((node instanceof Element) && "server".equals(node.getLocalName())
+                    && SERVER.equals(((Element) node).getAttribute("name"))) {
+                    return (Element) node;
+                }
+            }
+        }
+        throw new IllegalStateException("No " + SERVER + " in any " + DESCRIPTOR + " on the class path");
+    }
+
+    private static StubOracleDatabase.Table cursors(int sessions, String[] columns, boolean userFirst) {
+        Object[][] rows = new Object[sessions][];
+        for (int i = 0; i < sessions; i++) {
+            String user = "USER" + (i % 50);
+            long cursors = (i * 7919L) % 300;
+            rows[i] = userFirst ? new Object[] { user, (long) i, (long) i * 3, cursors } : new Object[] {
+                (long) i, user, (long) i * 3, cursors };
+        }
+        return new StubOracleDatabase.Table(columns, rows);
+    }
+
+    private static StubOracleDatabase.Table cursorsByUser(int sessions) {
+        int groups = Math.max(1, sessions / 20);
+        Object[][] rows = new Object[groups][];
+        for (int i = 0; i < groups; i++) {
+            rows[i] = new Object[] { "USER" + (i % 50), "host" + i + ".example.com", 20L * (i % 300),
+                (double) (i % 300), (long) (i % 300) * 2 };
+        }
+        return new StubOracleDatabase.Table(new String[] { "USERNAME", "MACHINE", "TOTAL_CUR", "AVG_CUR",
+            "MAX_CUR" }, rows);
+    }
+
+    private static StubOracleDatabase.Table rows(int count) {
+        Object[][] rows = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            rows[i] = new Object[] { (long) i, "name " + i, (i % 10 == 0) ? null : "row <" + i + "> & more",
+                i * 1.5d };
+        }
+        return new StubOracleDatabase.Table(new String[] { "ID", "NAME", "DESCRIPTION", "AMOUNT" }, rows);
+    }
+}
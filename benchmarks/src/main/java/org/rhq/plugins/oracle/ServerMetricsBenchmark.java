@@ -0,0 +1,87 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+
+/**
+ * One metric collection of the Oracle Server with every metric of the
+ * descriptor scheduled: the whole of <code>getValues</code>, and
+ * <code>populateRequestedMetrics</code> alone over values already collected.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ServerMetricsBenchmark {
+
+    private OracleServerComponent server;
+    private Set<MeasurementScheduleRequest> metrics;
+    private OracleMetricPlan plan;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.metrics = OracleBenchmarkFixture.serverMetrics();
+        StubOracleDriver.install(OracleBenchmarkFixture.database(this.metrics, 100, 0));
+        this.server = new OracleServerComponent();
+        this.server.start(OracleBenchmarkFixture.pluginConfiguration(), "benchmark");
+
+        // two collections, so that rates and ratios have a previous sample
+        this.server.getValues(new MeasurementReport(), this.metrics);
+        this.server.getValues(new MeasurementReport(), this.metrics);
+        this.plan = this.server.getMetricPlan(this.metrics);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.server.stop();
+    }
+
+    @Benchmark
+    public MeasurementReport getValues() throws Exception {
+        MeasurementReport report = new MeasurementReport();
+        this.server.getValues(report, this.metrics);
+        return report;
+    }
+
+    @Benchmark
+    public MeasurementReport populateRequestedMetrics() throws Exception {
+        MeasurementReport report = new MeasurementReport();
+        this.server.populateRequestedMetrics(report, this.metrics, this.plan);
+        return report;
+    }
+}
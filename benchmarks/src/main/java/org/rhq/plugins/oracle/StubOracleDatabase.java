@@ -0,0 +1,149 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canned answers for the {@link StubOracleDriver}. A query is answered by the
+ * first registered answer whose fragment it contains, once both are reduced to
+ * single spaces; anything else gets an empty result. A query ending in
+ * <code>ROWNUM &lt;= ?</code> is cut to the last bound parameter, as the
+ * diagnostic operations expect.
+ */
+public class StubOracleDatabase {
+
+    private static final String ROWNUM_LIMIT = "ROWNUM <= ?";
+
+    /**
+     * Computes the rows of a query.
+     */
+    public interface Answer {
+        /**
+         * @param parameters the bound parameters, in placeholder order
+         * @return the rows
+         */
+        Table answer(Object[] parameters);
+    }
+
+    private final List<String> fragments = new ArrayList<String>();
+    private final List<Answer> answers = new ArrayList<Answer>();
+
+    /** The answer index of each query seen, -1 for none. */
+    private final Map<String, Integer> resolved = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Answers every query containing the fragment with the same rows.
+     * @param fragment part of the query text
+     * @param table the rows
+     * @return this database
+     */
+    public StubOracleDatabase answer(String fragment, final Table table) {
+        return answer(fragment, new Answer() {
+            public Table answer(Object[] parameters) {
+                return table;
+            }
+        });
+    }
+
+    /**
+     * @param fragment part of the query text
+     * @param answer computes the rows of every query containing the fragment
+     * @return this database
+     */
+    public StubOracleDatabase answer(String fragment, Answer answer) {
+        this.fragments.add(normalize(fragment));
+        this.answers.add(answer);
+        this.resolved.clear();
+        return this;
+    }
+
+    Table query(String sql, Object[] parameters) {
+        Integer index = this.resolved.get(sql);
+        if (index == null) {
+            index = -1;
+            String normalized = normalize(sql);
+            for (int i = 0; i < this.fragments.size(); i++) {
+                if (normalized.contains(this.fragments.get(i))) {
+                    index = i;
+                    break;
+                }
+            }
+            if (normalized.endsWith(ROWNUM_LIMIT)) {
+                // remember the limit by encoding it in the sign
+                index = -index - 2;
+            }
+            this.resolved.put(sql, index);
+        }
+
+        if (index < -1) {
+            Table table = this.answers.get(-index - 2).answer(parameters);
+            return table.limit(((Number) parameters[parameters.length - 1]).intValue());
+        }
+        return (index >= 0) ? this.answers.get(index).answer(parameters) : Table.EMPTY;
+    }
+
+    private static String normalize(String sql) {
+        return sql.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * The rows of a result, as boxed values; null is SQL NULL.
+     */
+    public static class Table {
+        static final Table EMPTY = new Table(new String[0], new Object[0][]);
+
+        private final String[] columns;
+        private final Object[][] rows;
+        private final int rowCount;
+
+        /**
+         * @param columns the column labels
+         * @param rows the rows, each as long as the columns
+         */
+        public Table(String[] columns, Object[][] rows) {
+            this(columns, rows, rows.length);
+        }
+
+        private Table(String[] columns, Object[][] rows, int rowCount) {
+            this.columns = columns;
+            this.rows = rows;
+            this.rowCount = rowCount;
+        }
+
+        String[] getColumns() {
+            return this.columns;
+        }
+
+        int getRowCount() {
+            return this.rowCount;
+        }
+
+        Object getValue(int row, int column) {
+            return this.rows[row][column];
+        }
+
+        Table limit(int maxRows) {
+            return (maxRows < this.rowCount) ? new Table(this.columns, this.rows, maxRows) : this;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver standing in for Oracle in the benchmarks. It claims the
+ * <code>jdbc:oracle:thin:</code> URLs the plugin builds and answers every
+ * query from the installed {@link StubOracleDatabase}, so the plugin runs its
+ * real code paths without a database or network.
+ * <p>
+ * Connections, statements and result sets are dynamic proxies. Their own
+ * overhead is part of every measurement, but it is the same before and after a
+ * change to the plugin.
+ */
+public class StubOracleDriver implements Driver {
+
+    private static final String URL_PREFIX = "jdbc:oracle:thin:";
+
+    private static volatile StubOracleDatabase database = new StubOracleDatabase();
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubOracleDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * @param database answers the queries of every connection opened from now on
+     */
+    public static void install(StubOracleDatabase database) {
+        StubOracleDriver.database = database;
+    }
+
+    public boolean acceptsURL(String url) {
+        return (url != null) && url.startsWith(URL_PREFIX);
+    }
+
+    public Connection connect(String url, Properties info) {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        return (Connection) proxy(Connection.class, new ConnectionHandler(database));
+    }
+
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(StubOracleDriver.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * @return what a method does not care to answer: false, zero or null
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        } else if (type == Long.TYPE) {
+            return 0L;
+        } else if (type == Double.TYPE) {
+            return 0d;
+        } else if (type == Float.TYPE) {
+            return 0f;
+        } else if (type == Short.TYPE) {
+            return (short) 0;
+        } else if (type == Byte.TYPE) {
+            return (byte) 0;
+        }
+        return null;
+    }
+
+    private static class ConnectionHandler implements InvocationHandler {
+        private final StubOracleDatabase database;
+        private boolean closed;
+
+        ConnectionHandler(StubOracleDatabase database) {
+            this.database = database;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+            String name = method.getName();
+            if ("prepareStatement".equals(name)) {
+                return StatementHandler.create(this.database, (String) args[0], PreparedStatement.class);
+            } else if ("createStatement".equals(name)) {
+                return StatementHandler.create(this.database, null, Statement.class);
+            } else if ("close".equals(name)) {
+                this.closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return this.closed;
+            } else if ("getAutoCommit".equals(name) || "isValid".equals(name)) {
+                return Boolean.TRUE;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+        private final StubOracleDatabase database;
+        private final String sql;
+        private final List<Object> parameters = new ArrayList<Object>();
+        private int maxRows;
+        private boolean closed;
+
+        private StatementHandler(StubOracleDatabase database, String sql) {
+            this.database = database;
+            this.sql = sql;
+        }
+
+        static Object create(StubOracleDatabase database, String sql, Class<?> type) {
+            return proxy(type, new StatementHandler(database, sql));
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+            String name = method.getName();
+            if ("executeQuery".equals(name)) {
+                String query = (args != null) ? (String) args[0] : this.sql;
+                StubOracleDatabase.Table table = this.database.query(query, this.parameters.toArray());
+                return proxy(ResultSet.class, new ResultSetHandler(table, this.maxRows));
+            } else if ("executeUpdate".equals(name)) {
+                return 0;
+            } else if ("setNull".equals(name)) {
+                bind((Integer) args[0], null);
+                return null;
+            } else if (name.startsWith("set") && (args != null) && (args.length == 2)
+                && (args[0] instanceof Integer)) {
+                bind((Integer) args[0], args[1]);
+                return null;
+            } else if ("setMaxRows".equals(name)) {
+                this.maxRows = (Integer) args[0];
+                return null;
+            } else if ("clearParameters".equals(name)) {
+                this.parameters.clear();
+                return null;
+            } else if ("close".equals(name)) {
+                this.closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return this.closed;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private void bind(int index, Object value) {
+            while (this.parameters.size() < index) {
+                this.parameters.add(null);
+            }
+            this.parameters.set(index - 1, value);
+        }
+    }
+
+    private static class ResultSetHandler implements InvocationHandler {
+        private final StubOracleDatabase.Table table;
+        private final int rowCount;
+        private int row = -1;
+        private boolean wasNull;
+        private boolean closed;
+
+        ResultSetHandler(StubOracleDatabase.Table table, int maxRows) {
+            this.table = table;
+            this.rowCount = (maxRows > 0) ? Math.min(maxRows, table.getRowCount()) : table.getRowCount();
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+            String name = method.getName();
+            if ("next".equals(name)) {
+                if (this.row < this.rowCount) {
+                    this.row++;
+                }
+                return this.row < this.rowCount;
+            } else if (name.startsWith("get") && (args != null) && (args.length == 1)) {
+                int column = (args[0] instanceof Integer) ? (Integer) args[0] : findColumn((String) args[0]);
+                Object value = this.table.getValue(this.row, column - 1);
+                this.wasNull = (value == null);
+                return convert(value, method.getReturnType());
+            } else if ("findColumn".equals(name)) {
+                return findColumn((String) args[0]);
+            } else if ("wasNull".equals(name)) {
+                return this.wasNull;
+            } else if ("getMetaData".equals(name)) {
+                return proxy(ResultSetMetaData.class, new MetaDataHandler(this.table));
+            } else if ("close".equals(name)) {
+                this.closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return this.closed;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private int findColumn(String label) throws SQLException {
+            String[] columns = this.table.getColumns();
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equalsIgnoreCase(label)) {
+                    return i + 1;
+                }
+            }
+            throw new SQLException("Invalid column name [" + label + "]");
+        }
+
+        private static Object convert(Object value, Class<?> type) {
+            if (value == null) {
+                return defaultValue(type);
+            } else if (type == String.class) {
+                return value.toString();
+            } else if (type == Integer.TYPE) {
+                return ((Number) value).intValue();
+            } else if (type == Long.TYPE) {
+                return ((Number) value).longValue();
+            } else if (type == Double.TYPE) {
+                return ((Number) value).doubleValue();
+            }
+            return value;
+        }
+    }
+
+    private static class MetaDataHandler implements InvocationHandler {
+        private final StubOracleDatabase.Table table;
+
+        MetaDataHandler(StubOracleDatabase.Table table) {
+            this.table = table;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getColumnCount".equals(name)) {
+                return this.table.getColumns().length;
+            } else if ("getColumnName".equals(name) || "getColumnLabel".equals(name)) {
+                return this.table.getColumns()[(Integer) args[0] - 1];
+            } else if ("getColumnType".equals(name)) {
+                return isNumeric((Integer) args[0]) ? Types.NUMERIC : Types.VARCHAR;
+            } else if ("getColumnTypeName".equals(name)) {
+                return isNumeric((Integer) args[0]) ? "NUMBER" : "VARCHAR2";
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private boolean isNumeric(int column) {
+            return (this.table.getRowCount() > 0) && (this.table.getValue(0, column - 1) instanceof Number);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing map from <code>long</code> keys to non-negative
+ * <code>int</code> values, typically slot numbers into parallel primitive
+ * arrays. Lookups and updates never allocate. Not thread-safe.
+ */
+public class LongIntHashMap {
+
+    /** Returned by {@link #get(long)} for an absent key. */
+    public static final int NO_VALUE = -1;
+
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    /**
+     * @param expectedSize the number of entries to hold without resizing
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @param key the key
+     * @return the value, or {@link #NO_VALUE}
+     */
+    public int get(long key) {
+        int index = indexOf(key);
+        while (this.used[index]) {
+            if (this.keys[index] == key) {
+                return this.values[index];
+            }
+            index = (index + 1) & this.mask;
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @param key the key
+     * @param value a non-negative value
+     */
+    public void put(long key, int value) {
+        int index = indexOf(key);
+        while (this.used[index]) {
+            if (this.keys[index] == key) {
+                this.values[index] = value;
+                return;
+            }
+            index = (index + 1) & this.mask;
+        }
+        this.used[index] = true;
+        this.keys[index] = key;
+        this.values[index] = value;
+        if (++this.size * 4 > this.keys.length * 3) {
+            resize(this.keys.length << 1);
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the removed value, or {@link #NO_VALUE}
+     */
+    public int remove(long key) {
+        int index = indexOf(key);
+        while (this.used[index]) {
+            if (this.keys[index] == key) {
+                int value = this.values[index];
+                this.used[index] = false;
+                this.size--;
+                closeGap(index);
+                return value;
+            }
+            index = (index + 1) & this.mask;
+        }
+        return NO_VALUE;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public void clear() {
+        Arrays.fill(this.used, false);
+        this.size = 0;
+    }
+
+    /**
+     * Moves the entries following a removed one back so that linear probing
+     * still finds them.
+     */
+    private void closeGap(int gap) {
+        int index = (gap + 1) & this.mask;
+        while (this.used[index]) {
+            int home = indexOf(this.keys[index]);
+            // move the entry unless its home lies cyclically within (gap, index]
+            boolean movable = (gap <= index) ? ((home <= gap) || (home > index)) : ((home <= gap) && (home > index));
+            if (movable) {
+                this.keys[gap] = this.keys[index];
+                this.values[gap] = this.values[index];
+                this.used[gap] = true;
+                this.used[index] = false;
+                gap = index;
+            }
+            index = (index + 1) & this.mask;
+        }
+    }
+
+    private int indexOf(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & this.mask;
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.used = new boolean[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        boolean[] oldUsed = this.used;
+        allocate(capacity);
+        this.size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
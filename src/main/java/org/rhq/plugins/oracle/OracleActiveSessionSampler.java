@@ -0,0 +1,410 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertyList;
+import org.rhq.core.domain.configuration.PropertyMap;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pluginapi.operation.OperationResult;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Samples the active sessions of V$SESSION every few seconds, much like
+ * V$ACTIVE_SESSION_HISTORY but without needing the Diagnostics Pack.
+ * <p>
+ * Each active session becomes a fixed-width record in a direct
+ * {@link ByteBuffer} used as a ring, so the history costs no heap and a sample
+ * allocates nothing beyond what the JDBC driver does. Event and user names are
+ * stored as numbers and only resolved when the history is reported.
+ * <p>
+ * The time of every sample is kept too, even when no session was active, so
+ * average active sessions divide by the samples actually taken in the window
+ * rather than by what the configured interval would have taken.
+ */
+public class OracleActiveSessionSampler implements Runnable {
+    private static final Log LOG = LogFactory.getLog(OracleActiveSessionSampler.class);
+
+    static final String PROPERTY_SAMPLE_INTERVAL = "ashSampleInterval";
+    static final String PROPERTY_BUFFER_SIZE = "ashBufferSize";
+
+    static final String OPERATION_LIST_TOP_ACTIVITY = "listTopActivity";
+
+    static final int MIN_SAMPLE_INTERVAL = 1;
+    static final int MAX_SAMPLE_INTERVAL = 5;
+
+    private static final int OFFSET_TIME = 0;
+    private static final int OFFSET_SQL_ID = 8;
+    private static final int OFFSET_SID = 16;
+    private static final int OFFSET_USER = 20;
+    private static final int OFFSET_BLOCKER = 24;
+    private static final int OFFSET_EVENT = 28;
+    private static final int OFFSET_WAIT_CLASS = 30;
+    private static final int OFFSET_STATE = 31;
+    static final int RECORD_SIZE = 32;
+
+    private static final byte STATE_ON_CPU = 0;
+    private static final byte STATE_WAITING = 1;
+
+    /** The groupBy values, indexed by grouping. */
+    private static final String[] GROUPINGS = { "sqlId", "event", "waitClass", "user", "blockingSession" };
+    private static final int GROUP_BY_SQL_ID = 0;
+    private static final int GROUP_BY_EVENT = 1;
+    private static final int GROUP_BY_WAIT_CLASS = 2;
+    private static final int GROUP_BY_USER = 3;
+    private static final int GROUP_BY_BLOCKER = 4;
+
+    private static final int DEFAULT_MINUTES = 5;
+    private static final int DEFAULT_TOP_N = 10;
+
+    /** Sessions on CPU or in a non-idle wait, except this one. */
+    private static final String SQL_SAMPLE_ACTIVE_SESSIONS =
+        "SELECT " +
+        "   sid " +
+        "   , user# " +
+        "   , sql_id " +
+        "   , DECODE(state, 'WAITING', event#, -1) " +
+        "   , DECODE(state, 'WAITING', wait_class#, -1) " +
+        "   , NVL(blocking_session, -1) " +
+        "FROM " +
+        "   V$SESSION " +
+        "WHERE " +
+        "   status = 'ACTIVE' " +
+        "   AND type = 'USER' " +
+        "   AND (state <> 'WAITING' OR wait_class <> 'Idle') " +
+        "   AND sid <> SYS_CONTEXT('USERENV', 'SID')";
+
+    private static final String SQL_RETRIEVE_EVENT_NAMES =
+        "SELECT " +
+        "   event# " +
+        "   , name " +
+        "FROM " +
+        "   V$EVENT_NAME";
+
+    private static final String SQL_RETRIEVE_WAIT_CLASS_NAMES =
+        "SELECT DISTINCT " +
+        "   wait_class# " +
+        "   , wait_class " +
+        "FROM " +
+        "   V$EVENT_NAME";
+
+    private static final String SQL_RETRIEVE_USER_NAMES =
+        "SELECT " +
+        "   user_id " +
+        "   , username " +
+        "FROM " +
+        "   ALL_USERS";
+
+    private final OracleConnectionPool connectionPool;
+    private final ByteBuffer buffer;
+    private final int capacity;
+
+    /** When each sample was taken, as a ring a quarter the size of the records; guarded by the buffer. */
+    private final long[] sampleTimes;
+    private int sampleHead;
+    private int sampleCount;
+
+    /** The record written next; guarded by the buffer. */
+    private int head;
+
+    /** The number of records written, up to the capacity; guarded by the buffer. */
+    private int size;
+
+    private volatile Map<Integer, String> eventNames;
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being sampled
+     * @param bufferBytes the size of the history
+     */
+    public OracleActiveSessionSampler(OracleConnectionPool connectionPool, int bufferBytes) {
+        this.connectionPool = connectionPool;
+        this.capacity = Math.max(1024, bufferBytes / RECORD_SIZE);
+        this.buffer = ByteBuffer.allocateDirect(this.capacity * RECORD_SIZE);
+        this.sampleTimes = new long[this.capacity / 4];
+    }
+
+    /**
+     * Takes one sample; failures lose only that sample.
+     */
+    public void run() {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(SQL_SAMPLE_ACTIVE_SESSIONS);
+            statement.setFetchSize(200);
+            resultSet = statement.executeQuery();
+            long now = System.currentTimeMillis();
+            synchronized (this.buffer) {
+                this.sampleTimes[this.sampleHead] = now;
+                this.sampleHead = (this.sampleHead + 1) % this.sampleTimes.length;
+                this.sampleCount = Math.min(this.sampleCount + 1, this.sampleTimes.length);
+                while (resultSet.next()) {
+                    int offset = this.head * RECORD_SIZE;
+                    String sqlId = resultSet.getString(3);
+                    int event = resultSet.getInt(4);
+                    this.buffer.putLong(offset + OFFSET_TIME, now);
+                    this.buffer.putLong(offset + OFFSET_SQL_ID, (sqlId != null) ? OracleTopSqlSampler
+                        .decodeSqlId(sqlId) : 0);
+                    this.buffer.putInt(offset + OFFSET_SID, resultSet.getInt(1));
+                    this.buffer.putInt(offset + OFFSET_USER, resultSet.getInt(2));
+                    this.buffer.putInt(offset + OFFSET_BLOCKER, resultSet.getInt(6));
+                    this.buffer.putShort(offset + OFFSET_EVENT, (short) event);
+                    this.buffer.put(offset + OFFSET_WAIT_CLASS, (byte) resultSet.getInt(5));
+                    this.buffer.put(offset + OFFSET_STATE, (event < 0) ? STATE_ON_CPU : STATE_WAITING);
+                    this.head = (this.head + 1) % this.capacity;
+                    this.size = Math.min(this.size + 1, this.capacity);
+                }
+            }
+        } catch (SQLException e) {
+            LOG.info("Unable to sample active sessions", e);
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            LOG.warn("Unable to sample active sessions", e);
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * Aggregates the recent history by statement, event, wait class, user or
+     * blocking session.
+     * @param config the operation parameters
+     * @return the top contributors to activity, most samples first
+     * @throws SQLException if event or user names could not be read
+     */
+    public OperationResult listTopActivity(Configuration config) throws SQLException {
+        String groupByName = config.getSimpleValue("groupBy", GROUPINGS[GROUP_BY_SQL_ID]);
+        int minutes = Math.max(1, OracleServerComponent.getIntValue(config, "minutes", DEFAULT_MINUTES));
+        int topN = OracleServerComponent.getIntValue(config, OracleDiagnosticOperation.PARAMETER_TOP_N,
+            DEFAULT_TOP_N);
+        int groupBy = -1;
+        for (int i = 0; i < GROUPINGS.length; i++) {
+            if (GROUPINGS[i].equals(groupByName)) {
+                groupBy = i;
+            }
+        }
+        if (groupBy < 0) {
+            throw new IllegalArgumentException("Cannot group activity by [" + groupByName + "]");
+        }
+
+        long windowStart = System.currentTimeMillis() - minutes * 60000L;
+        int sampleCount = 0;
+        Activity activity = new Activity();
+        synchronized (this.buffer) {
+            // once either ring is full, the window cannot reach past its oldest entry
+            if (this.size == this.capacity) {
+                windowStart = Math.max(windowStart, this.buffer.getLong(this.head * RECORD_SIZE + OFFSET_TIME));
+            }
+            if (this.sampleCount == this.sampleTimes.length) {
+                windowStart = Math.max(windowStart, this.sampleTimes[this.sampleHead]);
+            }
+            for (int i = 1; i <= this.sampleCount; i++) {
+                if (this.sampleTimes[(this.sampleHead - i + this.sampleTimes.length) % this.sampleTimes.length]
+                    < windowStart) {
+                    break;
+                }
+                sampleCount++;
+            }
+            for (int i = 1; i <= this.size; i++) {
+                int offset = ((this.head - i + this.capacity) % this.capacity) * RECORD_SIZE;
+                if (this.buffer.getLong(offset + OFFSET_TIME) < windowStart) {
+                    break;
+                }
+                long key;
+                switch (groupBy) {
+                case GROUP_BY_SQL_ID:
+                    key = this.buffer.getLong(offset + OFFSET_SQL_ID);
+                    break;
+                case GROUP_BY_EVENT:
+                    key = this.buffer.getShort(offset + OFFSET_EVENT);
+                    break;
+                case GROUP_BY_WAIT_CLASS:
+                    key = this.buffer.get(offset + OFFSET_WAIT_CLASS);
+                    break;
+                case GROUP_BY_USER:
+                    key = this.buffer.getInt(offset + OFFSET_USER);
+                    break;
+                default:
+                    key = this.buffer.getInt(offset + OFFSET_BLOCKER);
+                    break;
+                }
+                if ((groupBy == GROUP_BY_BLOCKER) && (key < 0)) {
+                    continue;
+                }
+                activity.add(key, this.buffer.get(offset + OFFSET_STATE) == STATE_ON_CPU);
+            }
+        }
+
+        Map<Integer, String> names = null;
+        if (groupBy == GROUP_BY_EVENT) {
+            names = getEventNames();
+        } else if (groupBy == GROUP_BY_WAIT_CLASS) {
+            names = loadNames(SQL_RETRIEVE_WAIT_CLASS_NAMES);
+        } else if (groupBy == GROUP_BY_USER) {
+            names = loadNames(SQL_RETRIEVE_USER_NAMES);
+        }
+
+        int[] order = activity.top(topN);
+        PropertyList list = new PropertyList("topActivityList");
+        // the UI lists map entries in reverse, so add them back to front
+        for (int i = order.length - 1; i >= 0; i--) {
+            int slot = order[i];
+            long key = activity.keys[slot];
+            PropertyMap row = new PropertyMap("topActivity");
+            row.put(new PropertySimple("key", describe(groupBy, key, names)));
+            row.put(new PropertySimple("samples", activity.samples[slot]));
+            row.put(new PropertySimple("percentOfActivity", (activity.total > 0) ? 100d * activity.samples[slot]
+                / activity.total : 0d));
+            row.put(new PropertySimple("averageActiveSessions", (sampleCount > 0) ? (double) activity.samples[slot]
+                / sampleCount : 0d));
+            row.put(new PropertySimple("percentOnCpu", 100d * activity.onCpu[slot] / activity.samples[slot]));
+            list.add(row);
+        }
+        OperationResult result = new OperationResult();
+        result.getComplexResults().put(list);
+        result.getComplexResults().put(new PropertySimple("samples", activity.total));
+        result.getComplexResults().put(new PropertySimple("snapshots", sampleCount));
+        return result;
+    }
+
+    private static String describe(int groupBy, long key, Map<Integer, String> names) {
+        if (groupBy == GROUP_BY_SQL_ID) {
+            return (key == 0) ? "(no statement)" : OracleTopSqlSampler.encodeSqlId(key);
+        } else if (((groupBy == GROUP_BY_EVENT) || (groupBy == GROUP_BY_WAIT_CLASS)) && (key < 0)) {
+            return "ON CPU";
+        } else if (groupBy == GROUP_BY_BLOCKER) {
+            return "sid " + key;
+        }
+        String name = names.get((int) key);
+        return (name != null) ? name : String.valueOf(key);
+    }
+
+    private Map<Integer, String> getEventNames() throws SQLException {
+        Map<Integer, String> names = this.eventNames;
+        if (names == null) {
+            names = loadNames(SQL_RETRIEVE_EVENT_NAMES);
+            this.eventNames = names;
+        }
+        return names;
+    }
+
+    private Map<Integer, String> loadNames(String sql) throws SQLException {
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(sql);
+            statement.setFetchSize(500);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                names.put(resultSet.getInt(1), resultSet.getString(2));
+            }
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+        return names;
+    }
+
+    /**
+     * Sample counts per key, in parallel arrays.
+     */
+    private static class Activity {
+        private final LongIntHashMap slots = new LongIntHashMap(256);
+        private long[] keys = new long[256];
+        private int[] samples = new int[256];
+        private int[] onCpu = new int[256];
+        private int size;
+        private int total;
+
+        void add(long key, boolean cpu) {
+            int slot = this.slots.get(key);
+            if (slot == LongIntHashMap.NO_VALUE) {
+                if (this.size == this.keys.length) {
+                    grow();
+                }
+                slot = this.size++;
+                this.slots.put(key, slot);
+                this.keys[slot] = key;
+            }
+            this.samples[slot]++;
+            if (cpu) {
+                this.onCpu[slot]++;
+            }
+            this.total++;
+        }
+
+        /**
+         * Keeps the best n slots seen so far in a heap whose head is the worst
+         * of them, so each key costs at most one heap update.
+         * @return the slots of the n keys with the most samples, most first,
+         * ties in the order the keys were first seen
+         */
+        int[] top(int n) {
+            int count = (n > 0) ? Math.min(n, this.size) : this.size;
+            PriorityQueue<Integer> best = new PriorityQueue<Integer>(Math.max(1, count), new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int bySamples = samples[a] - samples[b];
+                    return (bySamples != 0) ? bySamples : b - a;
+                }
+            });
+            for (int slot = 0; slot < this.size; slot++) {
+                if (best.size() < count) {
+                    best.add(slot);
+                } else if ((count > 0) && (this.samples[slot] > this.samples[best.peek()])) {
+                    best.poll();
+                    best.add(slot);
+                }
+            }
+            int[] order = new int[best.size()];
+            for (int i = order.length - 1; i >= 0; i--) {
+                order[i] = best.poll();
+            }
+            return order;
+        }
+
+        private void grow() {
+            int length = this.keys.length * 2;
+            long[] newKeys = new long[length];
+            System.arraycopy(this.keys, 0, newKeys, 0, this.size);
+            this.keys = newKeys;
+            int[] newSamples = new int[length];
+            System.arraycopy(this.samples, 0, newSamples, 0, this.size);
+            this.samples = newSamples;
+            int[] newOnCpu = new int[length];
+            System.arraycopy(this.onCpu, 0, newOnCpu, 0, this.size);
+            this.onCpu = newOnCpu;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Answers "does this key still exist" for a whole family of child resources
+ * from one set, loaded with a single query and kept for a short time.
+ * <p>
+ * A key missing from the set may have been created since the load, so it is
+ * probed once on its own; the probe result is remembered until the next load.
+ */
+public class OracleAvailabilityIndex {
+    static final String PROPERTY_TTL = "availabilityIndexTtl";
+
+    private static final String SQL_LOAD_USERS =
+        "SELECT " +
+        "   username " +
+        "FROM " +
+        "   DBA_USERS";
+    private static final String SQL_PROBE_USER =
+        "SELECT " +
+        "   1 " +
+        "FROM " +
+        "   DBA_USERS " +
+        "WHERE " +
+        "   username = ? " +
+        "   AND ROWNUM = 1";
+    private static final String SQL_LOAD_SCHEMAS =
+        "SELECT " +
+        "   u.username " +
+        "FROM " +
+        "   DBA_USERS u " +
+        "WHERE " +
+        "   EXISTS (SELECT 1 FROM DBA_TABLES t WHERE t.owner = u.username)";
+    private static final String SQL_PROBE_SCHEMA =
+        "SELECT " +
+        "   1 " +
+        "FROM " +
+        "   DBA_TABLES " +
+        "WHERE " +
+        "   owner = ? " +
+        "   AND ROWNUM = 1";
+
+    private final OracleConnectionPool connectionPool;
+    private final String loadSql;
+    private final String probeSql;
+    private final long ttl;
+
+    private Set<String> existing;
+    private final Set<String> missing = new HashSet<String>();
+    private long loadedAt;
+
+    /**
+     * @param connectionPool the pool of the Oracle Server
+     * @param loadSql a query returning every existing key
+     * @param probeSql a query returning a row if the single bound key exists
+     * @param ttl how long, in milliseconds, a loaded set is trusted
+     */
+    public OracleAvailabilityIndex(OracleConnectionPool connectionPool, String loadSql, String probeSql, long ttl) {
+        this.connectionPool = connectionPool;
+        this.loadSql = loadSql;
+        this.probeSql = probeSql;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @param connectionPool the pool of the Oracle Server
+     * @param ttl how long, in milliseconds, a loaded set is trusted
+     * @return an index of the database users
+     */
+    public static OracleAvailabilityIndex forUsers(OracleConnectionPool connectionPool, long ttl) {
+        return new OracleAvailabilityIndex(connectionPool, SQL_LOAD_USERS, SQL_PROBE_USER, ttl);
+    }
+
+    /**
+     * @param connectionPool the pool of the Oracle Server
+     * @param ttl how long, in milliseconds, a loaded set is trusted
+     * @return an index of the users owning at least one table
+     */
+    public static OracleAvailabilityIndex forSchemas(OracleConnectionPool connectionPool, long ttl) {
+        return new OracleAvailabilityIndex(connectionPool, SQL_LOAD_SCHEMAS, SQL_PROBE_SCHEMA, ttl);
+    }
+
+    /**
+     * @param key the key of a child resource
+     * @return true if the key exists
+     * @throws SQLException if the set had to be loaded, or the key probed, and that failed
+     */
+    public synchronized boolean exists(String key) throws SQLException {
+        long now = System.currentTimeMillis();
+        if ((this.existing == null) || (now - this.loadedAt >= this.ttl)) {
+            this.existing = load();
+            this.missing.clear();
+            this.loadedAt = now;
+        }
+
+        if (this.existing.contains(key)) {
+            return true;
+        } else if (this.missing.contains(key)) {
+            return false;
+        }
+
+        boolean exists = probe(key);
+        if (exists) {
+            this.existing.add(key);
+        } else {
+            this.missing.add(key);
+        }
+        return exists;
+    }
+
+    private Set<String> load() throws SQLException {
+        Set<String> keys = new HashSet<String>();
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(this.loadSql);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                keys.add(resultSet.getString(1));
+            }
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+        return keys;
+    }
+
+    private boolean probe(String key) throws SQLException {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(this.probeSql);
+            statement.setString(1, key);
+            resultSet = statement.executeQuery();
+            return resultSet.next();
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Checks that an Oracle instance answers a trivial query, on its own schedule
+ * and over its own connection, so that neither a busy connection pool nor a
+ * slow collection delays the verdict. {@link #getAvailability()} only reads
+ * the last verdict.
+ * <p>
+ * The verdict flips only after {@link #FLIP_AFTER} probes in a row disagree
+ * with it. A probe that hangs past its timeout counts as a failure for every
+ * interval it keeps hanging.
+ */
+public class OracleAvailabilityProbe implements Runnable {
+    private static final Log LOG = LogFactory.getLog(OracleAvailabilityProbe.class);
+
+    static final String PROPERTY_INTERVAL = "availabilityProbeInterval";
+    static final String PROPERTY_TIMEOUT = "availabilityProbeTimeout";
+
+    /** Consecutive probes that must disagree with the verdict to change it. */
+    static final int FLIP_AFTER = 2;
+
+    private static final String SQL_PROBE = "SELECT 1 FROM DUAL";
+
+    private final Configuration pluginConfiguration;
+    private final long interval;
+    private final int timeout;
+
+    /** Opened by the probing thread, dropped after a failure or on close. */
+    private volatile Connection connection;
+
+    /** Guarded by this. */
+    private AvailabilityType availability;
+    private int disagreements;
+    private long probeStarted;
+
+    /**
+     * @param pluginConfiguration how to connect to the instance
+     * @param interval seconds between the end of one probe and the start of the next
+     * @param timeout seconds after which a probe has failed
+     */
+    public OracleAvailabilityProbe(Configuration pluginConfiguration, int interval, int timeout) {
+        this.pluginConfiguration = pluginConfiguration;
+        this.interval = Math.max(1, interval) * 1000L;
+        this.timeout = Math.max(1, timeout);
+    }
+
+    /**
+     * Probes the instance once.
+     */
+    public void run() {
+        synchronized (this) {
+            this.probeStarted = System.currentTimeMillis();
+        }
+        boolean up = false;
+        try {
+            up = probe();
+        } catch (SQLException e) {
+            LOG.debug("Oracle availability probe failed", e);
+            closeConnection();
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            LOG.warn("Oracle availability probe failed", e);
+            closeConnection();
+        } finally {
+            record(up ? AvailabilityType.UP : AvailabilityType.DOWN);
+        }
+    }
+
+    /**
+     * @return the last verdict, or DOWN if the current probe has hung long enough
+     * to count as {@link #FLIP_AFTER} failures
+     */
+    public synchronized AvailabilityType getAvailability() {
+        if ((this.availability == AvailabilityType.UP) && (this.probeStarted != 0)) {
+            long hung = System.currentTimeMillis() - this.probeStarted - this.timeout * 1000L;
+            if ((hung > 0) && (this.disagreements + 1 + hung / this.interval >= FLIP_AFTER)) {
+                return AvailabilityType.DOWN;
+            }
+        }
+        return (this.availability != null) ? this.availability : AvailabilityType.DOWN;
+    }
+
+    /**
+     * Closes the probe connection; call once the probe is no longer scheduled.
+     */
+    public void close() {
+        closeConnection();
+    }
+
+    private boolean probe() throws SQLException {
+        Connection connection = this.connection;
+        if (connection == null) {
+            connection = OracleServerComponent.buildConnection(this.pluginConfiguration);
+            this.connection = connection;
+        }
+        Statement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.createStatement();
+            statement.setQueryTimeout(this.timeout);
+            resultSet = statement.executeQuery(SQL_PROBE);
+            return resultSet.next();
+        } finally {
+            JDBCUtil.safeClose(statement, resultSet);
+        }
+    }
+
+    private synchronized void record(AvailabilityType result) {
+        this.probeStarted = 0;
+        if ((this.availability == null) || (result == this.availability)) {
+            this.availability = result;
+            this.disagreements = 0;
+        } else if (++this.disagreements >= FLIP_AFTER) {
+            LOG.info("Oracle instance is now " + result);
+            this.availability = result;
+            this.disagreements = 0;
+        }
+    }
+
+    private void closeConnection() {
+        JDBCUtil.safeClose(this.connection);
+        this.connection = null;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * The statistic and wait class rates of every instance of a RAC database,
+ * read with a single query over the GV$ views and demultiplexed by
+ * <code>inst_id</code>. The rates of an instance are computed against the
+ * previous snapshot, and are NaN in the first snapshot after it (re)started.
+ * <p>
+ * The same snapshot serves the Oracle Instance resources and the cluster-wide
+ * totals of the Oracle Server, e.g. "cluster total user commits per second".
+ */
+public class OracleClusterSnapshot extends OracleSnapshotCache<Map<Integer, OracleClusterSnapshot.Instance>> {
+
+    /** Prefixed to an instance metric to request its sum over the open instances. */
+    static final String CLUSTER_TOTAL_PREFIX = "cluster total ";
+
+    static final String METRIC_OPEN_INSTANCES = "cluster open instances";
+
+    static final String STATUS_OPEN = "OPEN";
+
+    /** The V$SYSSTAT statistics whose rates are reported per instance. */
+    private static final String[] STATISTICS = { "logons cumulative", "user commits", "user rollbacks",
+        "user calls", "execute count", "parse count (hard)", "session logical reads", "physical reads",
+        "redo size", "gc cr blocks received", "gc current blocks received" };
+
+    /**
+     * Each row is an instance (I), a statistic (S) or a wait class (W); the
+     * startup time is in seconds since the epoch and time_waited in centiseconds.
+     */
+    private static final String SQL_RETRIEVE_CLUSTER =
+        "SELECT " +
+        "   i.inst_id " +
+        "   , 'I' " +
+        "   , i.instance_name " +
+        "   , i.host_name " +
+        "   , i.status " +
+        "   , (i.startup_time - TO_DATE('19700101', 'YYYYMMDD')) * 86400 " +
+        "   , TO_NUMBER(NULL) " +
+        "FROM " +
+        "   GV$INSTANCE i " +
+        "UNION ALL " +
+        "SELECT " +
+        "   s.inst_id " +
+        "   , 'S' " +
+        "   , s.name " +
+        "   , NULL " +
+        "   , NULL " +
+        "   , s.value " +
+        "   , TO_NUMBER(NULL) " +
+        "FROM " +
+        "   GV$SYSSTAT s " +
+        "WHERE " +
+        "   s.name IN " + getNameList(STATISTICS) + " " +
+        "UNION ALL " +
+        "SELECT " +
+        "   w.inst_id " +
+        "   , 'W' " +
+        "   , w.wait_class " +
+        "   , NULL " +
+        "   , NULL " +
+        "   , w.total_waits " +
+        "   , w.time_waited * 10 " +
+        "FROM " +
+        "   GV$SYSTEM_WAIT_CLASS w " +
+        "WHERE " +
+        "   w.wait_class <> 'Idle'";
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being collected
+     */
+    public OracleClusterSnapshot(OracleConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    /**
+     * @param metric a metric name
+     * @return true if the metric is a cluster-wide total
+     */
+    public static boolean isClusterMetric(String metric) {
+        return metric.startsWith(CLUSTER_TOTAL_PREFIX) || metric.equals(METRIC_OPEN_INSTANCES);
+    }
+
+    /**
+     * @param instances a snapshot
+     * @param metric a cluster-wide metric
+     * @return the sum of the metric over the open instances, or NaN if no
+     * instance has a value for it
+     */
+    public static double getClusterValue(Map<Integer, Instance> instances, String metric) {
+        if (metric.equals(METRIC_OPEN_INSTANCES)) {
+            int open = 0;
+            for (Instance instance : instances.values()) {
+                if (instance.isOpen()) {
+                    open++;
+                }
+            }
+            return open;
+        }
+        String instanceMetric = metric.substring(CLUSTER_TOTAL_PREFIX.length());
+        double total = Double.NaN;
+        for (Instance instance : instances.values()) {
+            double value = instance.getValue(instanceMetric);
+            if (instance.isOpen() && !Double.isNaN(value)) {
+                total = Double.isNaN(total) ? value : total + value;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    protected Map<Integer, Instance> load(Connection connection) throws SQLException {
+        Snapshot<Map<Integer, Instance>> previous = getLatest();
+        Map<Integer, Instance> instances = new HashMap<Integer, Instance>();
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(SQL_RETRIEVE_CLUSTER);
+            statement.setFetchSize(500);
+            resultSet = statement.executeQuery();
+            long now = System.currentTimeMillis();
+            while (resultSet.next()) {
+                Integer id = resultSet.getInt(1);
+                Instance instance = instances.get(id);
+                if (instance == null) {
+                    instance = new Instance(id, now);
+                    instances.put(id, instance);
+                }
+                String kind = resultSet.getString(2);
+                String name = resultSet.getString(3);
+                if ("I".equals(kind)) {
+                    instance.name = name;
+                    instance.host = resultSet.getString(4);
+                    instance.status = resultSet.getString(5);
+                    instance.setStartupTime(resultSet.getLong(6));
+                } else if ("S".equals(kind)) {
+                    instance.putTotal(name + OracleRateCalculator.RATE_SUFFIX, resultSet.getDouble(6));
+                } else {
+                    instance.putTotal(name + OracleWaitCollector.WAITS_SUFFIX, resultSet.getDouble(6));
+                    instance.putTotal(name + OracleWaitCollector.WAIT_TIME_SUFFIX, resultSet.getDouble(7));
+                }
+            }
+        } finally {
+            JDBCUtil.safeClose(statement, resultSet);
+        }
+
+        for (Instance instance : instances.values()) {
+            Instance before = (previous != null) ? previous.getValue().get(instance.getId()) : null;
+            instance.computeRates(before);
+        }
+        return Collections.unmodifiableMap(instances);
+    }
+
+    /**
+     * @param names names without quotes
+     * @return a parenthesized list of the names as SQL string literals
+     */
+    static String getNameList(String[] names) {
+        StringBuilder list = new StringBuilder("(");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                list.append(", ");
+            }
+            list.append('\'').append(names[i]).append('\'');
+        }
+        return list.append(')').toString();
+    }
+
+    /**
+     * One instance at the time of the snapshot.
+     */
+    public static class Instance extends OracleCounterSample {
+        private String name;
+        private String host;
+        private String status;
+
+        Instance(int id, long sampleTime) {
+            super(id, sampleTime);
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getHost() {
+            return this.host;
+        }
+
+        public String getStatus() {
+            return this.status;
+        }
+
+        public boolean isOpen() {
+            return STATUS_OPEN.equals(this.status);
+        }
+    }
+}
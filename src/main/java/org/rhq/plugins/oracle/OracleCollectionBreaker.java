@@ -0,0 +1,125 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Backs collection off an instance that is struggling, so that monitoring does
+ * not add to the load it is reporting on.
+ * <p>
+ * After {@link #TRIP_AFTER} slow or timed out collection cycles in a row the
+ * breaker opens: nothing is collected for a backoff that doubles on every trip,
+ * up to a maximum. Once it elapses collection resumes thinned out, one cycle in
+ * N; every healthy cycle halves N and a single unhealthy one trips the breaker
+ * again. Back at every cycle, the backoff is reset.
+ */
+public class OracleCollectionBreaker {
+    private static final Log LOG = LogFactory.getLog(OracleCollectionBreaker.class);
+
+    static final String PROPERTY_SLOW_THRESHOLD = "slowCollectionThreshold";
+    static final String PROPERTY_MAX_BACKOFF = "collectionMaxBackoff";
+
+    /** Consecutive unhealthy cycles that open the breaker. */
+    static final int TRIP_AFTER = 3;
+
+    private static final long MIN_BACKOFF = 60 * 1000L;
+    private static final int MAX_THINNING = 16;
+
+    private final long slowThreshold;
+    private final long maxBackoff;
+
+    /** Guarded by this. */
+    private int unhealthyCycles;
+    private long backoff = MIN_BACKOFF;
+    private long openUntil;
+    private int thinning = 1;
+    private int skippedCycles;
+
+    /**
+     * @param slowThreshold seconds beyond which a collection cycle is slow
+     * @param maxBackoff the longest time in seconds the breaker stays open
+     */
+    public OracleCollectionBreaker(int slowThreshold, int maxBackoff) {
+        this.slowThreshold = Math.max(1, slowThreshold) * 1000000000L;
+        this.maxBackoff = Math.max(MIN_BACKOFF, maxBackoff * 1000L);
+    }
+
+    /**
+     * @return whether a collection cycle may run now; a refused cycle must not
+     * be {@link #recordCycle(long, boolean) recorded}
+     */
+    public synchronized boolean allowCycle() {
+        if (isOpen()) {
+            return false;
+        }
+        if ((this.thinning > 1) && (++this.skippedCycles < this.thinning)) {
+            return false;
+        }
+        this.skippedCycles = 0;
+        return true;
+    }
+
+    /**
+     * @return whether collection is suspended altogether
+     */
+    public synchronized boolean isOpen() {
+        return currentTimeMillis() < this.openUntil;
+    }
+
+    /**
+     * @param nanos how long an allowed cycle took
+     * @param timedOut whether it failed on a query or connection timeout
+     */
+    public synchronized void recordCycle(long nanos, boolean timedOut) {
+        if (timedOut || (nanos > this.slowThreshold)) {
+            this.unhealthyCycles++;
+            if ((this.thinning > 1) || (this.unhealthyCycles >= TRIP_AFTER)) {
+                trip();
+            }
+        } else {
+            this.unhealthyCycles = 0;
+            if (this.thinning > 1) {
+                this.thinning /= 2;
+                if (this.thinning == 1) {
+                    this.backoff = MIN_BACKOFF;
+                    LOG.info("Oracle collection has recovered");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the current time in milliseconds; a test clock overrides it
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void trip() {
+        LOG.warn("Oracle collection is slow or timing out; suspending it for " + (this.backoff / 1000)
+            + "s, then collecting one cycle in " + Math.min(MAX_THINNING, this.thinning * 2));
+        this.openUntil = currentTimeMillis() + this.backoff;
+        this.backoff = Math.min(this.maxBackoff, this.backoff * 2);
+        this.thinning = Math.min(MAX_THINNING, this.thinning * 2);
+        this.unhealthyCycles = 0;
+        this.skippedCycles = 0;
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * A small, bounded pool of JDBC connections to one Oracle instance.
+ * <p>
+ * Connections handed out by {@link #getConnection()} are proxies: closing one
+ * returns the physical connection to the pool, and
+ * {@link Connection#prepareStatement(String)} is answered from a per-connection
+ * statement cache. Callers therefore keep the usual open/prepare/close idiom and
+ * must always close what they borrow.
+ * <p>
+ * Every statement executed, row read and wait for a connection is recorded in
+ * the pool's {@link OracleQueryStatistics}.
+ * <p>
+ * Every execution is bounded by a query timeout, the pool's default unless the
+ * caller sets its own. A watchdog thread cancels executions that overrun it, so
+ * a hung instance cannot hold a collection thread and a connection forever.
+ */
+public class OracleConnectionPool {
+    private static final Log LOG = LogFactory.getLog(OracleConnectionPool.class);
+
+    static final String PROPERTY_MAX_SIZE = "poolMaxSize";
+    static final String PROPERTY_ACQUIRE_TIMEOUT = "poolAcquireTimeout";
+    static final String PROPERTY_STATEMENT_CACHE_SIZE = "statementCacheSize";
+    static final String PROPERTY_VALIDATION_INTERVAL = "poolValidationInterval";
+    static final String PROPERTY_QUERY_TIMEOUT = "queryTimeout";
+
+    private static final String SQL_VALIDATE = "SELECT 1 FROM DUAL";
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private final Configuration configuration;
+    private final int maxSize;
+    private final long acquireTimeout;
+    private final int statementCacheSize;
+    private final long validationInterval;
+    private final int queryTimeout;
+
+    private final OracleQueryStatistics statistics = new OracleQueryStatistics();
+
+    private final Semaphore permits;
+    private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+    private volatile boolean closed;
+
+    /** Executions with a timeout that are still running. */
+    private final Map<Execution, Boolean> executions = new ConcurrentHashMap<Execution, Boolean>();
+    private final ScheduledExecutorService watchdog;
+
+    /**
+     * @param configuration the Oracle Server plugin configuration
+     */
+    public OracleConnectionPool(Configuration configuration) {
+        this.configuration = configuration;
+        this.maxSize = Math.max(1, OracleServerComponent.getIntValue(configuration, PROPERTY_MAX_SIZE, 4));
+        this.acquireTimeout = OracleServerComponent.getIntValue(configuration, PROPERTY_ACQUIRE_TIMEOUT, 10) * 1000L;
+        this.statementCacheSize = Math.max(0,
+            OracleServerComponent.getIntValue(configuration, PROPERTY_STATEMENT_CACHE_SIZE, 20));
+        this.validationInterval = OracleServerComponent.getIntValue(configuration, PROPERTY_VALIDATION_INTERVAL, 30)
+            * 1000L;
+        this.queryTimeout = Math.max(0, OracleServerComponent.getIntValue(configuration, PROPERTY_QUERY_TIMEOUT, 30));
+        this.permits = new Semaphore(this.maxSize, true);
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "OracleQueryWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                cancelOverdueExecutions();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting at most the configured acquire timeout for
+     * one to become free. Idle connections are validated before being handed out.
+     * @return a pooled connection; close it to give it back
+     * @throws SQLException if the pool is closed, exhausted or the database
+     * cannot be reached
+     */
+    public Connection getConnection() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("Oracle connection pool has been closed");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!this.permits.tryAcquire(this.acquireTimeout, TimeUnit.MILLISECONDS)) {
+                this.statistics.recordConnectionTimeout();
+                throw new SQLException("Timed out after " + this.acquireTimeout + "ms waiting for one of "
+                    + this.maxSize + " pooled Oracle connections", OracleQueryStatistics.SQL_STATE_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SQLException sqle = new SQLException("Interrupted while waiting for a pooled Oracle connection");
+            sqle.initCause(e);
+            throw sqle;
+        }
+
+        boolean handedOut = false;
+        try {
+            PooledConnection pooled = takeValidIdleConnection();
+            if (pooled == null) {
+                pooled = new PooledConnection(OracleServerComponent.buildConnection(this.configuration));
+            }
+            Connection connection = pooled.checkOut();
+            handedOut = true;
+            this.statistics.recordConnectionWait(System.nanoTime() - start);
+            return connection;
+        } catch (SQLException e) {
+            this.statistics.recordFailure(e);
+            throw e;
+        } finally {
+            if (!handedOut) {
+                this.permits.release();
+            }
+        }
+    }
+
+    /**
+     * Closes every idle connection. Connections still borrowed are closed as
+     * they are returned.
+     */
+    public void close() {
+        this.closed = true;
+        this.watchdog.shutdownNow();
+        synchronized (this.idle) {
+            for (PooledConnection pooled : this.idle) {
+                pooled.closePhysical();
+            }
+            this.idle.clear();
+        }
+    }
+
+    /**
+     * @return what the statements executed through this pool cost
+     */
+    public OracleQueryStatistics getQueryStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * @return the maximum number of physical connections this pool opens
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    private PooledConnection takeValidIdleConnection() {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (this.idle) {
+                pooled = this.idle.poll();
+            }
+            if (pooled == null) {
+                return null;
+            }
+            if (pooled.isValid()) {
+                return pooled;
+            }
+            LOG.debug("Discarding invalid pooled Oracle connection");
+            pooled.closePhysical();
+        }
+    }
+
+    private void release(PooledConnection pooled, boolean reusable) {
+        try {
+            if (reusable && !this.closed) {
+                synchronized (this.idle) {
+                    // LIFO, so the busiest connections stay warm and spare ones age out
+                    this.idle.addFirst(pooled);
+                }
+            } else {
+                pooled.closePhysical();
+            }
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Calls a statement method. Executions are bounded by the statement's
+     * query timeout, timed, and the rows of the result sets they return
+     * counted. The timeout is enforced by the watchdog rather than the driver.
+     */
+    private Object execute(Execution execution, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("setQueryTimeout".equals(name)) {
+            execution.timeout = Math.max(0, (Integer) args[0]);
+            return null;
+        } else if ("getQueryTimeout".equals(name)) {
+            return execution.timeout;
+        } else if (!name.startsWith("execute")) {
+            return invoke(execution.statement, method, args);
+        }
+
+        long start = System.nanoTime();
+        if (execution.timeout > 0) {
+            execution.deadline = start + execution.timeout * 1000000000L;
+            this.executions.put(execution, Boolean.TRUE);
+        }
+        try {
+            Object result = invoke(execution.statement, method, args);
+            if (result instanceof ResultSet) {
+                result = Proxy.newProxyInstance(OracleConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { ResultSet.class }, new RowCounter((ResultSet) result));
+            }
+            return result;
+        } catch (SQLException e) {
+            if (execution.cancelled) {
+                SQLException timeout = new SQLException("Cancelled after exceeding the query timeout of "
+                    + execution.timeout + "s", OracleQueryStatistics.SQL_STATE_TIMEOUT, e.getErrorCode());
+                timeout.initCause(e);
+                e = timeout;
+            }
+            this.statistics.recordFailure(e);
+            throw e;
+        } finally {
+            synchronized (execution) {
+                // the watchdog must not cancel whatever runs next on the statement
+                this.executions.remove(execution);
+                execution.cancelled = false;
+            }
+            this.statistics.recordQuery(System.nanoTime() - start);
+        }
+    }
+
+    private void cancelOverdueExecutions() {
+        long now = System.nanoTime();
+        for (Execution execution : this.executions.keySet()) {
+            if (now - execution.deadline <= 0) {
+                continue;
+            }
+            synchronized (execution) {
+                if (execution.cancelled || !this.executions.containsKey(execution)) {
+                    continue;
+                }
+                execution.cancelled = true;
+                LOG.debug("Cancelling a statement that exceeded its query timeout of " + execution.timeout + "s");
+                try {
+                    execution.statement.cancel();
+                } catch (SQLException e) {
+                    LOG.debug("Unable to cancel statement", e);
+                } catch (RuntimeException e) {
+                    // keep the watchdog alive
+                    LOG.warn("Unable to cancel statement", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a proxy of the statement that bounds and times its executions
+     */
+    private Statement instrument(Statement statement, Class<?> type) {
+        final Execution execution = new Execution(statement, this.queryTimeout);
+        return (Statement) Proxy.newProxyInstance(OracleConnectionPool.class.getClassLoader(),
+            new Class<?>[] { type }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return execute(execution, method, args);
+                }
+            });
+    }
+
+    /**
+     * A statement and the timeout of its executions.
+     */
+    private static class Execution {
+        private final Statement statement;
+        private int timeout;
+        private volatile long deadline;
+        /** Set by the watchdog under the lock of this execution. */
+        private volatile boolean cancelled;
+
+        Execution(Statement statement, int timeout) {
+            this.statement = statement;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * A physical connection plus its statement cache.
+     */
+    private class PooledConnection {
+        private final Connection physical;
+        private final Map<String, CachedStatement> statements;
+        private long lastValidated;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.lastValidated = System.currentTimeMillis();
+            this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    if (size() > statementCacheSize && !eldest.getValue().inUse) {
+                        JDBCUtil.safeClose(eldest.getValue().statement);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Connection checkOut() {
+            return (Connection) Proxy.newProxyInstance(OracleConnectionPool.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new ConnectionHandler(this));
+        }
+
+        boolean isValid() {
+            try {
+                if (this.physical.isClosed()) {
+                    return false;
+                }
+            } catch (SQLException e) {
+                return false;
+            }
+            if (System.currentTimeMillis() - this.lastValidated < validationInterval) {
+                return true;
+            }
+
+            Statement statement = null;
+            ResultSet resultSet = null;
+            try {
+                statement = this.physical.createStatement();
+                statement.setQueryTimeout(VALIDATION_TIMEOUT_SECONDS);
+                resultSet = statement.executeQuery(SQL_VALIDATE);
+                boolean valid = resultSet.next();
+                this.lastValidated = System.currentTimeMillis();
+                return valid;
+            } catch (SQLException e) {
+                return false;
+            } finally {
+                JDBCUtil.safeClose(statement, resultSet);
+            }
+        }
+
+        /**
+         * Forces validation the next time this connection is borrowed.
+         */
+        void suspect() {
+            this.lastValidated = 0;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            if (statementCacheSize == 0) {
+                return (PreparedStatement) instrument(this.physical.prepareStatement(sql), PreparedStatement.class);
+            }
+            CachedStatement cached = this.statements.get(sql);
+            if (cached == null) {
+                cached = new CachedStatement(this.physical.prepareStatement(sql));
+                this.statements.put(sql, cached);
+            } else if (cached.inUse) {
+                // the same statement is already open on this connection
+                return (PreparedStatement) instrument(this.physical.prepareStatement(sql), PreparedStatement.class);
+            }
+            cached.inUse = true;
+            return cached.checkOut(this);
+        }
+
+        Object execute(Execution execution, Method method, Object[] args) throws Throwable {
+            return OracleConnectionPool.this.execute(execution, method, args);
+        }
+
+        Execution newExecution(Statement statement) {
+            return new Execution(statement, queryTimeout);
+        }
+
+        void closePhysical() {
+            for (Iterator<CachedStatement> i = this.statements.values().iterator(); i.hasNext();) {
+                JDBCUtil.safeClose(i.next().statement);
+                i.remove();
+            }
+            JDBCUtil.safeClose(this.physical);
+        }
+    }
+
+    /**
+     * A prepared statement that stays open while its connection is pooled.
+     */
+    private static class CachedStatement {
+        private final PreparedStatement statement;
+        private boolean inUse;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        PreparedStatement checkOut(final PooledConnection owner) {
+            final Execution execution = owner.newExecution(this.statement);
+            return (PreparedStatement) Proxy.newProxyInstance(OracleConnectionPool.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    private boolean closed;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if ("close".equals(name)) {
+                            if (!this.closed) {
+                                this.closed = true;
+                                try {
+                                    statement.clearParameters();
+                                } catch (SQLException e) {
+                                    owner.suspect();
+                                } finally {
+                                    inUse = false;
+                                }
+                            }
+                            return null;
+                        } else if ("isClosed".equals(name) && this.closed) {
+                            return Boolean.TRUE;
+                        } else if (this.closed) {
+                            throw new SQLException("Statement has been closed");
+                        }
+                        try {
+                            return owner.execute(execution, method, args);
+                        } catch (SQLException e) {
+                            owner.suspect();
+                            throw e;
+                        }
+                    }
+                });
+        }
+    }
+
+    /**
+     * The handle callers see; one per checkout so that a stale handle cannot
+     * touch a connection somebody else has borrowed since.
+     */
+    private class ConnectionHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        ConnectionHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!this.closed) {
+                    this.closed = true;
+                    release(this.pooled, reset());
+                }
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return this.closed || this.pooled.physical.isClosed();
+            } else if (this.closed) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+
+            try {
+                if ("prepareStatement".equals(name) && args.length == 1) {
+                    return this.pooled.prepare((String) args[0]);
+                }
+                Object result = OracleConnectionPool.invoke(this.pooled.physical, method, args);
+                if (result instanceof Statement) {
+                    // createStatement, prepareCall and the other prepareStatement forms
+                    result = instrument((Statement) result, method.getReturnType());
+                }
+                return result;
+            } catch (SQLException e) {
+                this.pooled.suspect();
+                throw e;
+            }
+        }
+
+        private boolean reset() {
+            try {
+                if (!this.pooled.physical.getAutoCommit()) {
+                    this.pooled.physical.rollback();
+                    this.pooled.physical.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                LOG.debug("Unable to reset pooled Oracle connection, discarding it", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Counts the rows read from a result set, recording them once it is
+     * exhausted or closed.
+     */
+    private class RowCounter implements InvocationHandler {
+        private final ResultSet resultSet;
+        private long rows;
+        private boolean recorded;
+
+        RowCounter(ResultSet resultSet) {
+            this.resultSet = resultSet;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("next".equals(name)) {
+                Boolean next = (Boolean) OracleConnectionPool.invoke(this.resultSet, method, args);
+                if (next.booleanValue()) {
+                    this.rows++;
+                } else {
+                    record();
+                }
+                return next;
+            } else if ("close".equals(name)) {
+                record();
+            }
+            return OracleConnectionPool.invoke(this.resultSet, method, args);
+        }
+
+        private void record() {
+            if (!this.recorded) {
+                this.recorded = true;
+                statistics.recordRows(this.rows);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The cumulative counters of one instance or container at one point in time,
+ * keyed by the name of the rate metric each is reported as, and their rates
+ * since the previous sample of the same instance or container. Not modified
+ * once its snapshot is loaded.
+ */
+public class OracleCounterSample {
+    private final int id;
+    private final long sampleTime;
+    private long startupTime;
+
+    private final Map<String, Double> totals = new HashMap<String, Double>();
+    private final Map<String, Double> rates = new HashMap<String, Double>();
+
+    /**
+     * @param id the <code>inst_id</code> or <code>con_id</code>
+     * @param sampleTime when the counters were read, in milliseconds
+     */
+    OracleCounterSample(int id, long sampleTime) {
+        this.id = id;
+        this.sampleTime = sampleTime;
+    }
+
+    /**
+     * @param startupTime when the counters last started from zero; no rates
+     * are computed across a change
+     */
+    void setStartupTime(long startupTime) {
+        this.startupTime = startupTime;
+    }
+
+    /**
+     * @param metric the rate metric the counter is reported as
+     * @param total the counter value
+     */
+    void putTotal(String metric, double total) {
+        this.totals.put(metric, total);
+    }
+
+    /**
+     * @param previous the previous sample of the same instance or container, or null
+     */
+    void computeRates(OracleCounterSample previous) {
+        if ((previous == null) || (previous.startupTime != this.startupTime)
+            || (this.sampleTime <= previous.sampleTime)) {
+            return;
+        }
+        double elapsedSeconds = (this.sampleTime - previous.sampleTime) / 1000d;
+        for (Map.Entry<String, Double> total : this.totals.entrySet()) {
+            Double before = previous.totals.get(total.getKey());
+            if ((before != null) && (total.getValue() >= before)) {
+                this.rates.put(total.getKey(), (total.getValue() - before) / elapsedSeconds);
+            }
+        }
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * @param metric a rate metric, e.g. "user commits per second"
+     * @return the rate since the previous sample, or NaN
+     */
+    public double getValue(String metric) {
+        Double rate = this.rates.get(metric);
+        return (rate != null) ? rate : Double.NaN;
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertyList;
+import org.rhq.core.domain.configuration.PropertyMap;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pluginapi.operation.OperationResult;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Samples the open and cached cursor counts of every session in the
+ * background and keeps a short history per session, so that sessions whose
+ * cursor count keeps growing are noticed before <code>open_cursors</code> is
+ * exhausted.
+ * <p>
+ * Sessions are keyed by (sid, serial#). The history lives in flat primitive
+ * arrays, one ring of {@link #PROPERTY_HISTORY_SIZE} samples per session slot,
+ * and is only touched by the sampling thread. Readers see an immutable summary.
+ */
+public class OracleCursorLeakDetector implements Runnable {
+    private static final Log LOG = LogFactory.getLog(OracleCursorLeakDetector.class);
+
+    static final String PROPERTY_SAMPLE_INTERVAL = "cursorSampleInterval";
+    static final String PROPERTY_THRESHOLD = "cursorLeakThreshold";
+    static final String PROPERTY_HISTORY_SIZE = "cursorHistorySize";
+
+    static final String METRIC_SESSIONS_ABOVE_THRESHOLD = "sessionsAboveCursorThreshold";
+    static final String METRIC_FASTEST_GROWTH = "fastestCursorGrowth";
+    static final String METRIC_HEADROOM = "openCursorHeadroom";
+    static final String METRIC_SUSPECTS = "suspectedCursorLeaks";
+
+    static final String OPERATION_LIST_SUSPECTS = "listSuspectedCursorLeaks";
+
+    /** Samples a session needs before growth alone makes it a suspect. */
+    private static final int MIN_GROWTH_SAMPLES = 3;
+
+    private static final int DEFAULT_TOP_N = 20;
+
+    private static final String SQL_SAMPLE_CURSORS =
+        "SELECT " +
+        "   s.sid " +
+        "   , s.serial# " +
+        "   , s.username " +
+        "   , SUM(DECODE(n.name, 'opened cursors current', st.value, 0)) " +
+        "   , SUM(DECODE(n.name, 'session cursor cache count', st.value, 0)) " +
+        "   , (SELECT TO_NUMBER(value) FROM V$PARAMETER WHERE name = 'open_cursors') " +
+        "FROM " +
+        "   V$SESSION s " +
+        "   , V$SESSTAT st " +
+        "   , V$STATNAME n " +
+        "WHERE " +
+        "   st.sid = s.sid " +
+        "   AND n.statistic# = st.statistic# " +
+        "   AND n.name IN ('opened cursors current', 'session cursor cache count') " +
+        "GROUP BY " +
+        "   s.sid " +
+        "   , s.serial# " +
+        "   , s.username";
+
+    private static final String SQL_RETRIEVE_OPEN_CURSORS =
+        "SELECT " +
+        "   s.sid " +
+        "   , s.serial# " +
+        "   , c.sql_id " +
+        "   , c.sql_text " +
+        "   , COUNT(*) " +
+        "FROM " +
+        "   V$OPEN_CURSOR c " +
+        "   , V$SESSION s " +
+        "WHERE " +
+        "   c.saddr = s.saddr " +
+        "   AND ";
+
+    private static final String SQL_RETRIEVE_OPEN_CURSORS_ORDER =
+        " GROUP BY " +
+        "   s.sid " +
+        "   , s.serial# " +
+        "   , c.sql_id " +
+        "   , c.sql_text " +
+        "ORDER BY " +
+        "   5 DESC";
+
+    private final OracleConnectionPool connectionPool;
+    private final int historySize;
+    private final double threshold;
+
+    private final LongIntHashMap slots = new LongIntHashMap(256);
+    private long[] keys = new long[0];
+    private boolean[] used = new boolean[0];
+    private String[] userNames = new String[0];
+    private long[] lastSeen = new long[0];
+    private int[] heads = new int[0];
+    private int[] counts = new int[0];
+    private double[] cached = new double[0];
+    private double[] openHistory = new double[0];
+    private long[] timeHistory = new long[0];
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+    private long sampleNumber;
+
+    private volatile Summary summary;
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being sampled
+     * @param historySize the samples kept per session
+     * @param thresholdPercent the percentage of <code>open_cursors</code> above which a session is a suspect
+     */
+    public OracleCursorLeakDetector(OracleConnectionPool connectionPool, int historySize, int thresholdPercent) {
+        this.connectionPool = connectionPool;
+        this.historySize = Math.max(MIN_GROWTH_SAMPLES, historySize);
+        this.threshold = thresholdPercent / 100d;
+    }
+
+    /**
+     * @param name a metric name
+     * @return true if the metric is served by this detector
+     */
+    public static boolean isCursorMetric(String name) {
+        return METRIC_SESSIONS_ABOVE_THRESHOLD.equals(name) || METRIC_FASTEST_GROWTH.equals(name)
+            || METRIC_HEADROOM.equals(name) || METRIC_SUSPECTS.equals(name);
+    }
+
+    /**
+     * Never touches the database.
+     * @param name a cursor metric name
+     * @return the value as of the last sample, or null before the first one
+     */
+    public Double getValue(String name) {
+        Summary current = this.summary;
+        if (current == null) {
+            return null;
+        }
+        if (METRIC_SESSIONS_ABOVE_THRESHOLD.equals(name)) {
+            return (double) current.sessionsAboveThreshold;
+        } else if (METRIC_FASTEST_GROWTH.equals(name)) {
+            return current.fastestGrowth;
+        } else if (METRIC_HEADROOM.equals(name)) {
+            return current.openCursorsLimit - current.maxOpenCursors;
+        } else if (METRIC_SUSPECTS.equals(name)) {
+            return (double) current.suspects.length;
+        }
+        return null;
+    }
+
+    /**
+     * Takes one sample; failures keep the previous summary.
+     */
+    public void run() {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(SQL_SAMPLE_CURSORS);
+            statement.setFetchSize(500);
+            resultSet = statement.executeQuery();
+
+            long now = System.currentTimeMillis();
+            long sample = ++this.sampleNumber;
+            double limit = Double.NaN;
+            while (resultSet.next()) {
+                long key = ((long) resultSet.getInt(1) << 32) | (resultSet.getInt(2) & 0xFFFFFFFFL);
+                int slot = this.slots.get(key);
+                if (slot == LongIntHashMap.NO_VALUE) {
+                    slot = allocate(key, resultSet.getString(3));
+                }
+                record(slot, now, resultSet.getDouble(4));
+                this.cached[slot] = resultSet.getDouble(5);
+                this.lastSeen[slot] = sample;
+                limit = resultSet.getDouble(6);
+            }
+            evict(sample);
+            this.summary = summarize(limit);
+        } catch (SQLException e) {
+            LOG.info("Unable to sample session cursors", e);
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            LOG.warn("Unable to sample session cursors", e);
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * Lists the suspected sessions, largest growth first, with the statements
+     * holding their cursors open.
+     * @param config the operation parameters
+     * @return one row per suspected session and statement
+     * @throws SQLException if the open cursors could not be read
+     */
+    public OperationResult listSuspects(Configuration config) throws SQLException {
+        Summary current = this.summary;
+        Suspect[] suspects = (current != null) ? current.suspects : new Suspect[0];
+        int topN = OracleServerComponent.getIntValue(config, OracleDiagnosticOperation.PARAMETER_TOP_N,
+            DEFAULT_TOP_N);
+        if ((topN > 0) && (suspects.length > topN)) {
+            Suspect[] top = new Suspect[topN];
+            System.arraycopy(suspects, 0, top, 0, topN);
+            suspects = top;
+        }
+
+        Map<Long, List<Object[]>> statements = new HashMap<Long, List<Object[]>>();
+        if (suspects.length > 0) {
+            Connection connection = null;
+            PreparedStatement statement = null;
+            ResultSet resultSet = null;
+            try {
+                connection = this.connectionPool.getConnection();
+                int bindSize = OracleSysStatCollector.getBindSize(suspects.length);
+                statement = connection.prepareStatement(SQL_RETRIEVE_OPEN_CURSORS
+                    + OracleSysStatCollector.getInList("s.sid", bindSize) + SQL_RETRIEVE_OPEN_CURSORS_ORDER);
+                int index = 1;
+                for (Suspect suspect : suspects) {
+                    statement.setInt(index++, suspect.sid);
+                }
+                while (index <= bindSize) {
+                    statement.setInt(index++, -1);
+                }
+                resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    Long key = ((long) resultSet.getInt(1) << 32) | (resultSet.getInt(2) & 0xFFFFFFFFL);
+                    List<Object[]> rows = statements.get(key);
+                    if (rows == null) {
+                        rows = new ArrayList<Object[]>();
+                        statements.put(key, rows);
+                    }
+                    rows.add(new Object[] { resultSet.getString(3), resultSet.getString(4), resultSet.getLong(5) });
+                }
+            } finally {
+                JDBCUtil.safeClose(connection, statement, resultSet);
+            }
+        }
+
+        List<PropertyMap> rows = new ArrayList<PropertyMap>();
+        for (Suspect suspect : suspects) {
+            List<Object[]> sessionStatements = statements.get(suspect.key);
+            if (sessionStatements == null) {
+                rows.add(toPropertyMap(suspect, null));
+            } else {
+                for (Object[] sessionStatement : sessionStatements) {
+                    rows.add(toPropertyMap(suspect, sessionStatement));
+                }
+            }
+        }
+
+        PropertyList list = new PropertyList("suspectedCursorLeakList");
+        // the UI lists map entries in reverse, so add them back to front
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            list.add(rows.get(i));
+        }
+        OperationResult result = new OperationResult();
+        result.getComplexResults().put(list);
+        return result;
+    }
+
+    private static PropertyMap toPropertyMap(Suspect suspect, Object[] statement) {
+        PropertyMap row = new PropertyMap("suspectedCursorLeak");
+        row.put(new PropertySimple("sid", suspect.sid));
+        row.put(new PropertySimple("serialNum", suspect.serial));
+        row.put(new PropertySimple("userName", suspect.userName));
+        row.put(new PropertySimple("openCursors", suspect.openCursors));
+        row.put(new PropertySimple("cachedCursors", suspect.cachedCursors));
+        row.put(new PropertySimple("growthPerMinute", suspect.growthPerMinute));
+        row.put(new PropertySimple("sqlId", (statement != null) ? statement[0] : null));
+        row.put(new PropertySimple("sqlText", (statement != null) ? statement[1] : null));
+        row.put(new PropertySimple("sqlCursors", (statement != null) ? statement[2] : null));
+        return row;
+    }
+
+    private int allocate(long key, String userName) {
+        if (this.freeCount == 0) {
+            grow(Math.max(64, this.keys.length * 2));
+        }
+        int slot = this.freeSlots[--this.freeCount];
+        this.slots.put(key, slot);
+        this.keys[slot] = key;
+        this.used[slot] = true;
+        this.userNames[slot] = userName;
+        this.heads[slot] = 0;
+        this.counts[slot] = 0;
+        return slot;
+    }
+
+    private void record(int slot, long timestamp, double openCursors) {
+        int offset = slot * this.historySize;
+        int head = this.heads[slot];
+        this.openHistory[offset + head] = openCursors;
+        this.timeHistory[offset + head] = timestamp;
+        this.heads[slot] = (head + 1) % this.historySize;
+        if (this.counts[slot] < this.historySize) {
+            this.counts[slot]++;
+        }
+    }
+
+    /**
+     * Frees the slots of sessions missing from the latest sample.
+     */
+    private void evict(long sample) {
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (this.used[slot] && (this.lastSeen[slot] != sample)) {
+                this.slots.remove(this.keys[slot]);
+                this.used[slot] = false;
+                this.userNames[slot] = null;
+                this.freeSlots[this.freeCount++] = slot;
+            }
+        }
+    }
+
+    private Summary summarize(double limit) {
+        List<Suspect> suspects = new ArrayList<Suspect>();
+        int aboveThreshold = 0;
+        double maxOpen = 0;
+        double fastestGrowth = 0;
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (!this.used[slot]) {
+                continue;
+            }
+            double open = this.openHistory[slot * this.historySize
+                + (this.heads[slot] + this.historySize - 1) % this.historySize];
+            double growth = getGrowthPerMinute(slot);
+            boolean above = !Double.isNaN(limit) && (open >= this.threshold * limit);
+            if (above) {
+                aboveThreshold++;
+            }
+            maxOpen = Math.max(maxOpen, open);
+            fastestGrowth = Math.max(fastestGrowth, growth);
+            if (above || ((this.counts[slot] >= MIN_GROWTH_SAMPLES) && (growth > 0) && isNonDecreasing(slot))) {
+                suspects.add(new Suspect(this.keys[slot], this.userNames[slot], open, this.cached[slot], growth));
+            }
+        }
+        Collections.sort(suspects, new Comparator<Suspect>() {
+            public int compare(Suspect a, Suspect b) {
+                return Double.compare(b.growthPerMinute, a.growthPerMinute);
+            }
+        });
+        return new Summary(limit, aboveThreshold, maxOpen, fastestGrowth, suspects.toArray(new Suspect[suspects
+            .size()]));
+    }
+
+    /**
+     * @return the least-squares slope of the open cursor count, in cursors per minute
+     */
+    private double getGrowthPerMinute(int slot) {
+        int count = this.counts[slot];
+        if (count < 2) {
+            return 0;
+        }
+        int offset = slot * this.historySize;
+        int first = (this.heads[slot] + this.historySize - count) % this.historySize;
+        long origin = this.timeHistory[offset + first];
+        double sumX = 0;
+        double sumY = 0;
+        double sumXY = 0;
+        double sumXX = 0;
+        for (int i = 0; i < count; i++) {
+            int index = offset + (first + i) % this.historySize;
+            double x = (this.timeHistory[index] - origin) / 60000d;
+            double y = this.openHistory[index];
+            sumX += x;
+            sumY += y;
+            sumXY += x * y;
+            sumXX += x * x;
+        }
+        double denominator = count * sumXX - sumX * sumX;
+        return (denominator == 0) ? 0 : (count * sumXY - sumX * sumY) / denominator;
+    }
+
+    private boolean isNonDecreasing(int slot) {
+        int count = this.counts[slot];
+        int offset = slot * this.historySize;
+        int first = (this.heads[slot] + this.historySize - count) % this.historySize;
+        for (int i = 1; i < count; i++) {
+            if (this.openHistory[offset + (first + i) % this.historySize]
+                < this.openHistory[offset + (first + i - 1) % this.historySize]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow(int capacity) {
+        int oldCapacity = this.keys.length;
+        this.keys = copy(this.keys, capacity);
+        boolean[] newUsed = new boolean[capacity];
+        System.arraycopy(this.used, 0, newUsed, 0, oldCapacity);
+        this.used = newUsed;
+        String[] newUserNames = new String[capacity];
+        System.arraycopy(this.userNames, 0, newUserNames, 0, oldCapacity);
+        this.userNames = newUserNames;
+        this.lastSeen = copy(this.lastSeen, capacity);
+        this.heads = copy(this.heads, capacity);
+        this.counts = copy(this.counts, capacity);
+        this.cached = copy(this.cached, capacity);
+        this.openHistory = copy(this.openHistory, capacity * this.historySize);
+        this.timeHistory = copy(this.timeHistory, capacity * this.historySize);
+
+        int[] newFreeSlots = new int[capacity];
+        System.arraycopy(this.freeSlots, 0, newFreeSlots, 0, this.freeCount);
+        // hand out the lowest slots first
+        for (int slot = capacity - 1; slot >= oldCapacity; slot--) {
+            newFreeSlots[this.freeCount++] = slot;
+        }
+        this.freeSlots = newFreeSlots;
+    }
+
+    private static long[] copy(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static int[] copy(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static double[] copy(double[] array, int length) {
+        double[] copy = new double[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    /**
+     * A session found leaking cursors, as of the last sample.
+     */
+    private static class Suspect {
+        private final long key;
+        private final int sid;
+        private final int serial;
+        private final String userName;
+        private final double openCursors;
+        private final double cachedCursors;
+        private final double growthPerMinute;
+
+        Suspect(long key, String userName, double openCursors, double cachedCursors, double growthPerMinute) {
+            this.key = key;
+            this.sid = (int) (key >>> 32);
+            this.serial = (int) key;
+            this.userName = userName;
+            this.openCursors = openCursors;
+            this.cachedCursors = cachedCursors;
+            this.growthPerMinute = growthPerMinute;
+        }
+    }
+
+    private static class Summary {
+        private final double openCursorsLimit;
+        private final int sessionsAboveThreshold;
+        private final double maxOpenCursors;
+        private final double fastestGrowth;
+        private final Suspect[] suspects;
+
+        Summary(double openCursorsLimit, int sessionsAboveThreshold, double maxOpenCursors, double fastestGrowth,
+            Suspect[] suspects) {
+            this.openCursorsLimit = openCursorsLimit;
+            this.sessionsAboveThreshold = sessionsAboveThreshold;
+            this.maxOpenCursors = maxOpenCursors;
+            this.fastestGrowth = fastestGrowth;
+            this.suspects = suspects;
+        }
+    }
+}
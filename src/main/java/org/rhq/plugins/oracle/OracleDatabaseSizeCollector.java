@@ -0,0 +1,135 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Computes the database size on its own schedule, so that metric collection
+ * only ever reads the last computed value.
+ */
+public class OracleDatabaseSizeCollector implements Runnable {
+    private static final Log LOG = LogFactory.getLog(OracleDatabaseSizeCollector.class);
+
+    static final String PROPERTY_REFRESH_INTERVAL = "sizeRefreshInterval";
+
+    static final String PROPERTY_TOTAL_SIZE = "totalSize";
+    static final String PROPERTY_USED_SIZE = "usedSize";
+    static final String PROPERTY_FREE_SIZE = "freeSize";
+    static final String PROPERTY_TEMP_SIZE = "tempSize";
+    static final String PROPERTY_SIZE_AGE = "sizeAge";
+
+    private static final String SQL_RETRIEVE_SIZE_DB =
+        "SELECT " +
+        "   (SELECT NVL(SUM(bytes), 0) FROM SYS.DBA_DATA_FILES) " +
+        "   , (SELECT NVL(SUM(bytes), 0) FROM SYS.DBA_FREE_SPACE) " +
+        "   , (SELECT NVL(SUM(bytes), 0) FROM SYS.DBA_TEMP_FILES) " +
+        "FROM " +
+        "   DUAL";
+
+    private final OracleConnectionPool connectionPool;
+
+    private volatile DatabaseSize size;
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being measured
+     */
+    public OracleDatabaseSizeCollector(OracleConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * @param name a metric name
+     * @return true if the metric is served by this collector
+     */
+    public static boolean isSizeMetric(String name) {
+        return PROPERTY_TOTAL_SIZE.equals(name) || PROPERTY_USED_SIZE.equals(name) || PROPERTY_FREE_SIZE.equals(name)
+            || PROPERTY_TEMP_SIZE.equals(name) || PROPERTY_SIZE_AGE.equals(name);
+    }
+
+    /**
+     * Never touches the database.
+     * @param name a size metric name
+     * @return the last computed value, or null if none has been computed yet
+     */
+    public Double getValue(String name) {
+        DatabaseSize current = this.size;
+        if (current == null) {
+            return null;
+        }
+        if (PROPERTY_TOTAL_SIZE.equals(name)) {
+            return current.totalBytes;
+        } else if (PROPERTY_USED_SIZE.equals(name)) {
+            return current.totalBytes - current.freeBytes;
+        } else if (PROPERTY_FREE_SIZE.equals(name)) {
+            return current.freeBytes;
+        } else if (PROPERTY_TEMP_SIZE.equals(name)) {
+            return current.tempBytes;
+        } else if (PROPERTY_SIZE_AGE.equals(name)) {
+            return (System.currentTimeMillis() - current.computedAt) / 1000d;
+        }
+        return null;
+    }
+
+    /**
+     * Recomputes the sizes; failures keep the previous values.
+     */
+    public void run() {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(SQL_RETRIEVE_SIZE_DB);
+            resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+                this.size = new DatabaseSize(resultSet.getDouble(1), resultSet.getDouble(2), resultSet.getDouble(3),
+                    System.currentTimeMillis());
+            }
+        } catch (SQLException e) {
+            LOG.info("Unable to compute the database size", e);
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            LOG.warn("Unable to compute the database size", e);
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    private static class DatabaseSize {
+        private final double totalBytes;
+        private final double freeBytes;
+        private final double tempBytes;
+        private final long computedAt;
+
+        DatabaseSize(double totalBytes, double freeBytes, double tempBytes, long computedAt) {
+            this.totalBytes = totalBytes;
+            this.freeBytes = freeBytes;
+            this.tempBytes = tempBytes;
+            this.computedAt = computedAt;
+        }
+    }
+}
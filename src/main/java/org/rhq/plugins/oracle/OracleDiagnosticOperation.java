@@ -0,0 +1,357 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertyList;
+import org.rhq.core.domain.configuration.PropertyMap;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pluginapi.operation.OperationResult;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * A diagnostic operation answered by one read-only query, described by a row of
+ * a static table rather than by code.
+ * <p>
+ * Sorting is done by the database on a whitelisted column, and only the first
+ * <code>topN</code> rows are fetched. Statements are prepared, so the pool's
+ * statement cache serves repeated invocations, and nothing is locked while
+ * rows stream in.
+ */
+public class OracleDiagnosticOperation {
+
+    /** Operation parameter naming the column to sort by. */
+    static final String PARAMETER_SORT_BY = "sortBy";
+
+    /** Operation parameter, ASC or DESC. */
+    static final String PARAMETER_SORT_ORDER = "sortOrder";
+
+    /** Operation parameter limiting the rows returned; 0 returns all rows. */
+    static final String PARAMETER_TOP_N = "topN";
+
+    private static final int DEFAULT_TOP_N = 100;
+
+    private static final int MAX_FETCH_SIZE = 500;
+
+    private static final Map<String, OracleDiagnosticOperation> OPERATIONS =
+        new HashMap<String, OracleDiagnosticOperation>();
+
+    static {
+        register(new OracleDiagnosticOperation("listOpenCursorsBySession", "openCursorList", "openCursors",
+            "SELECT " +
+            "   s.sid " +
+            "   , s.username " +
+            "   , s.serial# serial_num " +
+            "   , a.value num_cursors " +
+            "FROM " +
+            "   V$SESSTAT a " +
+            "   , V$STATNAME b " +
+            "   , V$SESSION s " +
+            "WHERE " +
+            "   a.statistic# = b.statistic# " +
+            "   AND s.sid = a.sid " +
+            "   AND b.name = 'opened cursors current'",
+            "numCursors", "DESC",
+            new Column("sid", "sid", Column.LONG, true),
+            new Column("userName", "username", Column.STRING, true),
+            new Column("serialNum", "serial_num", Column.LONG, true),
+            new Column("numCursors", "num_cursors", Column.LONG, true)));
+
+        register(new OracleDiagnosticOperation("listOpenCursorsByUserByMachine", "openCursorByUserList",
+            "openCursorsByUser",
+            "SELECT " +
+            "   s.username " +
+            "   , s.machine " +
+            "   , SUM(a.value) total_cur " +
+            "   , AVG(a.value) avg_cur " +
+            "   , MAX(a.value) max_cur " +
+            "FROM " +
+            "   V$SESSTAT a " +
+            "   , V$STATNAME b " +
+            "   , V$SESSION s " +
+            "WHERE " +
+            "   a.statistic# = b.statistic# " +
+            "   AND s.sid = a.sid " +
+            "   AND b.name = 'opened cursors current' " +
+            "GROUP BY " +
+            "   s.username " +
+            "   , s.machine",
+            "numCursors", "DESC",
+            new Column("userName", "username", Column.STRING, true),
+            new Column("connectingServer", "machine", Column.STRING, true),
+            new Column("numCursors", "total_cur", Column.LONG, true),
+            new Column("avgCursors", "avg_cur", Column.DOUBLE, true),
+            new Column("maxCursors", "max_cur", Column.LONG, true)));
+
+        register(new OracleDiagnosticOperation("listCachedCursorsBySession", "cachedCursorByUserList",
+            "cachedCursorsByUser",
+            "SELECT " +
+            "   s.username " +
+            "   , s.sid " +
+            "   , s.serial# serial_num " +
+            "   , a.value num_cursors " +
+            "FROM " +
+            "   V$SESSTAT a " +
+            "   , V$STATNAME b " +
+            "   , V$SESSION s " +
+            "WHERE " +
+            "   a.statistic# = b.statistic# " +
+            "   AND s.sid = a.sid " +
+            "   AND b.name = 'session cursor cache count'",
+            "numCursors", "DESC",
+            new Column("userName", "username", Column.STRING, true),
+            new Column("sid", "sid", Column.LONG, true),
+            new Column("serialNum", "serial_num", Column.LONG, true),
+            new Column("numCursors", "num_cursors", Column.LONG, true)));
+
+        register(new OracleDiagnosticOperation("viewSessionCursorsCache", "sessionCursorCacheList",
+            "cachedCursorsBySession",
+            "SELECT " +
+            "   c.user_name " +
+            "   , c.sid " +
+            "   , c.sql_text " +
+            "FROM " +
+            "   V$OPEN_CURSOR c " +
+            "WHERE " +
+            "   c.sid = ?",
+            null, null,
+            new Column("userName", "user_name", Column.STRING, false),
+            new Column("sid", "sid", Column.LONG, false),
+            new Column("sqlText", "sql_text", Column.STRING, false)).bind("sid"));
+    }
+
+    private final String name;
+    private final String listName;
+    private final String mapName;
+    private final String sql;
+    private final String defaultSortBy;
+    private final String defaultSortOrder;
+    private final Column[] columns;
+    private String[] parameters = new String[0];
+
+    /**
+     * @param name the operation name
+     * @param listName the name of the result list
+     * @param mapName the name of each row in the result list
+     * @param sql the query, without ORDER BY
+     * @param defaultSortBy the column property sorted by when none is given, null if the rows are unsorted
+     * @param defaultSortOrder ASC or DESC
+     * @param columns the columns of the result rows
+     */
+    OracleDiagnosticOperation(String name, String listName, String mapName, String sql, String defaultSortBy,
+        String defaultSortOrder, Column... columns) {
+        this.name = name;
+        this.listName = listName;
+        this.mapName = mapName;
+        this.sql = sql;
+        this.defaultSortBy = defaultSortBy;
+        this.defaultSortOrder = defaultSortOrder;
+        this.columns = columns;
+    }
+
+    /**
+     * Declares the operation parameters bound, as numbers, to the placeholders of the query.
+     * @param parameters the parameter names in placeholder order
+     * @return this operation
+     */
+    OracleDiagnosticOperation bind(String... parameters) {
+        this.parameters = parameters;
+        return this;
+    }
+
+    static void register(OracleDiagnosticOperation operation) {
+        OPERATIONS.put(operation.name, operation);
+    }
+
+    /**
+     * @param name an operation name
+     * @return the diagnostic operation of that name, or null
+     */
+    public static OracleDiagnosticOperation forName(String name) {
+        return OPERATIONS.get(name);
+    }
+
+    /**
+     * Runs the operation.
+     * @param connectionPool the pool to borrow a connection from
+     * @param config the operation parameters
+     * @return the rows in the descriptor's result list
+     * @throws SQLException if the query fails
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    public OperationResult invoke(OracleConnectionPool connectionPool, Configuration config) throws SQLException {
+        int topN = getIntParameter(config, PARAMETER_TOP_N, DEFAULT_TOP_N);
+        String query = buildQuery(config, topN);
+
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = connectionPool.getConnection();
+            statement = connection.prepareStatement(query);
+            statement.setFetchSize(((topN > 0) && (topN < MAX_FETCH_SIZE)) ? topN : MAX_FETCH_SIZE);
+            int index = 1;
+            for (String parameter : this.parameters) {
+                statement.setLong(index++, getLongParameter(config, parameter));
+            }
+            if (topN > 0) {
+                statement.setInt(index, topN);
+            }
+            resultSet = statement.executeQuery();
+
+            List<PropertyMap> rows = new ArrayList<PropertyMap>();
+            while (resultSet.next()) {
+                PropertyMap row = new PropertyMap(this.mapName);
+                for (Column column : this.columns) {
+                    row.put(new PropertySimple(column.property, column.read(resultSet)));
+                }
+                rows.add(row);
+            }
+
+            PropertyList list = new PropertyList(this.listName);
+            if (this.defaultSortBy != null) {
+                // the UI lists map entries in reverse, so add them back to front
+                for (int i = rows.size() - 1; i >= 0; i--) {
+                    list.add(rows.get(i));
+                }
+            } else {
+                for (PropertyMap row : rows) {
+                    list.add(row);
+                }
+            }
+
+            OperationResult result = new OperationResult();
+            result.getComplexResults().put(list);
+            return result;
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * @param config the operation parameters
+     * @param topN the row limit, 0 for none
+     * @return the query with the requested ordering and limit applied
+     */
+    String buildQuery(Configuration config, int topN) {
+        StringBuilder query = new StringBuilder(this.sql.length() + 64);
+        if (topN > 0) {
+            query.append("SELECT * FROM (");
+        }
+        query.append(this.sql);
+        if (this.defaultSortBy != null) {
+            Column sortBy = getColumn(config.getSimpleValue(PARAMETER_SORT_BY, this.defaultSortBy));
+            String sortOrder = config.getSimpleValue(PARAMETER_SORT_ORDER, this.defaultSortOrder);
+            query.append(" ORDER BY ").append(sortBy.expression);
+            query.append("DESC".equalsIgnoreCase(sortOrder) ? " DESC" : " ASC");
+        }
+        if (topN > 0) {
+            query.append(") WHERE ROWNUM <= ?");
+        }
+        return query.toString();
+    }
+
+    private Column getColumn(String property) {
+        for (Column column : this.columns) {
+            if (column.sortable && column.property.equalsIgnoreCase(property)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("Cannot sort [" + this.name + "] by [" + property + "]");
+    }
+
+    private static int getIntParameter(Configuration config, String name, int defaultValue) {
+        String value = config.getSimpleValue(name, null);
+        if ((value == null) || (value.trim().length() == 0)) {
+            return defaultValue;
+        }
+        long number = parseLong(name, value);
+        if ((number < 0) || (number > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("Invalid value [" + value + "] for parameter [" + name + "]");
+        }
+        return (int) number;
+    }
+
+    private static long getLongParameter(Configuration config, String name) {
+        String value = config.getSimpleValue(name, null);
+        if ((value == null) || (value.trim().length() == 0)) {
+            throw new IllegalArgumentException("Parameter [" + name + "] is required");
+        }
+        return parseLong(name, value);
+    }
+
+    private static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value [" + value + "] for parameter [" + name + "]");
+        }
+    }
+
+    /**
+     * One column of the result rows.
+     */
+    static class Column {
+        static final int STRING = 0;
+        static final int LONG = 1;
+        static final int DOUBLE = 2;
+
+        private final String property;
+        private final String expression;
+        private final int type;
+        private final boolean sortable;
+
+        /**
+         * @param property the name of the result property
+         * @param expression the column alias in the query
+         * @param type how the value is read
+         * @param sortable whether the rows may be sorted by the column
+         */
+        Column(String property, String expression, int type, boolean sortable) {
+            this.property = property;
+            this.expression = expression;
+            this.type = type;
+            this.sortable = sortable;
+        }
+
+        Object read(ResultSet resultSet) throws SQLException {
+            Object value;
+            switch (this.type) {
+            case LONG:
+                value = resultSet.getLong(this.expression);
+                break;
+            case DOUBLE:
+                value = resultSet.getDouble(this.expression);
+                break;
+            default:
+                return resultSet.getString(this.expression);
+            }
+            return resultSet.wasNull() ? null : value;
+        }
+    }
+}
@@ -20,9 +20,13 @@ package org.rhq.plugins.oracle;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jetbrains.annotations.Nullable;
@@ -35,37 +39,77 @@ import org.rhq.core.pluginapi.inventory.ResourceDiscoveryComponent;
 import org.rhq.core.pluginapi.inventory.ResourceDiscoveryContext;
 import org.rhq.core.pluginapi.inventory.ManualAddFacet;
 import org.rhq.core.system.ProcessInfo;
+import org.rhq.core.util.jdbc.JDBCUtil;
 
 
 /**
+ * Discovers Oracle instances from their processes. The version is read from
+ * the Oracle home, found in the process environment or in /etc/oratab, and
+ * stays unknown when the home tells nothing: discovery never logs in with the
+ * default credentials, which could lock the account out. What a scan learns
+ * about a process is kept until the process goes away, so later scans do not
+ * inspect it again.
+ *
  * @author Greg Hinkle
  */
 public class OracleDiscoveryComponent implements ResourceDiscoveryComponent, ManualAddFacet {
     private static Log log = LogFactory.getLog(OracleDiscoveryComponent.class);
 
+    /** Keyed by pid, SID and home; replaced at each scan. */
+    private static final Map<String, Instance> instances = new ConcurrentHashMap<String, Instance>();
+
     public Set<DiscoveredResourceDetails> discoverResources(ResourceDiscoveryContext resourceDiscoveryContext)
         throws InvalidPluginConfigurationException, Exception {
         Set<DiscoveredResourceDetails> found = new HashSet<DiscoveredResourceDetails>();
         List<ProcessScanResult> autoDiscoveryResults = resourceDiscoveryContext.getAutoDiscoveredProcesses();
+        Map<String, String> oratab = null;
+        Map<String, Instance> scanned = new LinkedHashMap<String, Instance>();
+        Map<String, ProcessInfo> processes = new LinkedHashMap<String, ProcessInfo>();
+        // the processes of one instance share what is learned about it
+        Map<String, Instance> homes = new LinkedHashMap<String, Instance>();
         for (ProcessScanResult process : autoDiscoveryResults) {
-            String sid = process.getProcessInfo().getEnvironmentVariable("ORACLE_SID");
+            ProcessInfo processInfo = process.getProcessInfo();
+            String sid = processInfo.getEnvironmentVariable("ORACLE_SID");
             if ((sid == null) || (sid.length() == 0)) {
                 log.info("Unable to discover Oracle instance SID. Use manual inventory to complete setup.");
                 continue;
             }
 
-            String pwd = process.getProcessInfo().getExecutable().getCwd();
+            String home = processInfo.getEnvironmentVariable("ORACLE_HOME");
+            if ((home == null) || (home.length() == 0)) {
+                if (oratab == null) {
+                    oratab = OracleInstallation.readOratab(OracleInstallation.ORATAB);
+                }
+                home = oratab.get(sid);
+            }
 
-            String version = null;
-            if (pwd.contains("10.2.0")) {
-                version = "10.2.0";
+            String key = processInfo.getPid() + ":" + sid + ":" + home;
+            Instance instance = instances.get(key);
+            if (instance == null) {
+                instance = homes.get(sid + ":" + home);
             }
+            if (instance == null) {
+                String version = OracleInstallation.findVersion(home);
+                if (version == null) {
+                    // the working directory of an instance is usually $ORACLE_HOME/dbs
+                    version = OracleInstallation.findVersion(processInfo.getExecutable().getCwd());
+                }
+                instance = new Instance(sid, version);
+            }
+            homes.put(sid + ":" + home, instance);
+            scanned.put(key, instance);
+            processes.put(key, processInfo);
+        }
 
+        instances.keySet().retainAll(scanned.keySet());
+        instances.putAll(scanned);
+
+        for (Map.Entry<String, Instance> entry : scanned.entrySet()) {
             Configuration pluginConfig = resourceDiscoveryContext.getDefaultPluginConfiguration().deepCopy();
-            pluginConfig.put(new PropertySimple("sid", sid));
+            pluginConfig.put(new PropertySimple("sid", entry.getValue().sid));
 
-            DiscoveredResourceDetails details = createResourceDetails(resourceDiscoveryContext, pluginConfig, version,
-                process.getProcessInfo());
+            DiscoveredResourceDetails details = createResourceDetails(resourceDiscoveryContext, pluginConfig,
+                entry.getValue().version, processes.get(entry.getKey()));
             found.add(details);
         }
 
@@ -76,9 +120,7 @@ public class OracleDiscoveryComponent implements ResourceDiscoveryComponent, Man
                                                       ResourceDiscoveryContext resourceDiscoveryContext)
             throws InvalidPluginConfigurationException {
         try {
-            Connection connection = OracleServerComponent.buildConnection(pluginConfig);
-            DatabaseMetaData dbmd = connection.getMetaData();
-            String version = dbmd.getDatabaseMajorVersion() + "." + dbmd.getDatabaseMinorVersion();
+            String version = probeVersion(pluginConfig);
             DiscoveredResourceDetails details = createResourceDetails(resourceDiscoveryContext, pluginConfig,
                 version, null);
             return details;
@@ -88,6 +130,16 @@ public class OracleDiscoveryComponent implements ResourceDiscoveryComponent, Man
         }
     }
 
+    private static String probeVersion(Configuration pluginConfig) throws SQLException {
+        Connection connection = OracleServerComponent.buildConnection(pluginConfig, true);
+        try {
+            DatabaseMetaData dbmd = connection.getMetaData();
+            return dbmd.getDatabaseMajorVersion() + "." + dbmd.getDatabaseMinorVersion();
+        } finally {
+            JDBCUtil.safeClose(connection);
+        }
+    }
+
     private static DiscoveredResourceDetails createResourceDetails(ResourceDiscoveryContext discoveryContext,
         Configuration pluginConfig, String version, @Nullable
         ProcessInfo processInfo) {
@@ -97,4 +149,19 @@ public class OracleDiscoveryComponent implements ResourceDiscoveryComponent, Man
         return new DiscoveredResourceDetails(discoveryContext.getResourceType(), key, name, version, description,
             pluginConfig, processInfo);
     }
-}
\ No newline at end of file
+
+    /**
+     * What discovery learned about one instance process.
+     */
+    private static class Instance {
+        private final String sid;
+
+        /** Null if unknown. */
+        private final String version;
+
+        Instance(String sid, String version) {
+            this.sid = sid;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds the Oracle home of an instance and the version installed in it from
+ * the file system, so that discovery does not need a connection.
+ */
+public class OracleInstallation {
+    private static final Log LOG = LogFactory.getLog(OracleInstallation.class);
+
+    static final File ORATAB = new File("/etc/oratab");
+
+    /** Relative to the Oracle home; lists the installed components and their versions. */
+    private static final String INVENTORY = "inventory/ContentsXML/comps.xml";
+
+    /** Captures the major and minor version, e.g. 19.0 of 19.0.0.0.0. */
+    private static final Pattern SERVER_COMPONENT = Pattern
+        .compile("<COMP\\s+NAME=\"oracle\\.server\"\\s+VER=\"(\\d+\\.\\d+)[0-9.]*\"");
+
+    /**
+     * A path element such as 10.2.0 or 19.0.0, as in /u01/app/oracle/product/19.0.0/dbhome_1;
+     * captures the major and minor version.
+     */
+    private static final Pattern PATH_VERSION = Pattern.compile("^(\\d+\\.\\d+)(\\.\\d+)*");
+
+    private OracleInstallation() {
+    }
+
+    /**
+     * @param oratab the oratab file
+     * @return the Oracle home of each SID listed in the file, empty if it cannot be read
+     */
+    static Map<String, String> readOratab(File oratab) {
+        Map<String, String> homes = new HashMap<String, String>();
+        if (!oratab.canRead()) {
+            return homes;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(oratab));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("#")) {
+                    continue;
+                }
+                // SID:ORACLE_HOME:Y|N
+                String[] fields = line.split(":");
+                if ((fields.length >= 2) && !fields[0].equals("*") && (fields[1].length() > 0)) {
+                    homes.put(fields[0], fields[1]);
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Unable to read " + oratab, e);
+        } finally {
+            close(reader);
+        }
+        return homes;
+    }
+
+    /**
+     * @param home an Oracle home
+     * @return the major and minor version of the database server installed in
+     * it, e.g. 19.0 as a connection reports it, as recorded in its inventory or
+     * else named in its path, or null if unknown
+     */
+    static String findVersion(String home) {
+        if (home == null) {
+            return null;
+        }
+        String version = readInventoryVersion(new File(home, INVENTORY));
+        if (version != null) {
+            return version;
+        }
+        for (File path = new File(home); path != null; path = path.getParentFile()) {
+            Matcher matcher = PATH_VERSION.matcher(path.getName());
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+        return null;
+    }
+
+    private static String readInventoryVersion(File inventory) {
+        if (!inventory.canRead()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(inventory));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = SERVER_COMPONENT.matcher(line);
+                if (matcher.find()) {
+                    return matcher.group(1);
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Unable to read " + inventory, e);
+        } finally {
+            close(reader);
+        }
+        return null;
+    }
+
+    private static void close(BufferedReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOG.debug("Unable to close reader", e);
+            }
+        }
+    }
+}
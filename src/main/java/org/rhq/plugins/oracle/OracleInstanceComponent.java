@@ -0,0 +1,91 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.pluginapi.measurement.MeasurementFacet;
+import org.rhq.plugins.database.AbstractDatabaseComponent;
+import org.rhq.plugins.oracle.OracleClusterSnapshot.Instance;
+import org.rhq.plugins.oracle.OracleSnapshotCache.Snapshot;
+
+/**
+ * One instance of a RAC database, answered from the cluster snapshot its
+ * Oracle Server shares between all instances, so no instance needs a
+ * connection of its own.
+ */
+public class OracleInstanceComponent extends AbstractDatabaseComponent<OracleServerComponent> implements
+    MeasurementFacet {
+    /** The cluster snapshot age, in milliseconds, from which availability checks start a background reload. */
+    private static final long AVAILABILITY_MAX_AGE = 30 * 1000L;
+
+    /** The oldest cluster snapshot availability is decided from; older ones defer to the server. */
+    private static final long AVAILABILITY_STALE_AGE = 10 * 60 * 1000L;
+
+    /**
+     * Decided from the latest cluster snapshot only, so the availability
+     * thread never runs its query; without a recent one, or while collection
+     * is suspended, the server's own verdict stands.
+     */
+    public AvailabilityType getAvailability() {
+        OracleServerComponent server = this.resourceContext.getParentResourceComponent();
+        if (server.isCollectionSuspended()) {
+            return server.getAvailability();
+        }
+        Snapshot<Map<Integer, Instance>> snapshot = server.getClusterSnapshot().peek(AVAILABILITY_MAX_AGE);
+        if ((snapshot == null) || (System.currentTimeMillis() - snapshot.getTimestamp() > AVAILABILITY_STALE_AGE)) {
+            return server.getAvailability();
+        }
+        Instance instance = snapshot.getValue().get(getInstanceId());
+        return ((instance != null) && instance.isOpen()) ? AvailabilityType.UP : AvailabilityType.DOWN;
+    }
+
+    public void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> metrics) throws Exception {
+        OracleServerComponent server = this.resourceContext.getParentResourceComponent();
+        if (server.isCollectionSuspended()) {
+            return;
+        }
+        OracleClusterSnapshot cache = server.getClusterSnapshot();
+        Snapshot<Map<Integer, Instance>> snapshot = cache.get(OracleSnapshotCache.getMaxAge(metrics));
+        if (snapshot == null) {
+            // the first background refresh has not completed yet
+            return;
+        }
+        Instance instance = snapshot.getValue().get(getInstanceId());
+        if (instance == null) {
+            return;
+        }
+
+        for (MeasurementScheduleRequest request : metrics) {
+            double value = instance.getValue(request.getName());
+            if (!Double.isNaN(value) && cache.markReported(request, snapshot)) {
+                report.addData(new MeasurementDataNumeric(snapshot.getTimestamp(), request, value));
+            }
+        }
+    }
+
+    private Integer getInstanceId() {
+        return Integer.valueOf(this.resourceContext.getResourceKey());
+    }
+}
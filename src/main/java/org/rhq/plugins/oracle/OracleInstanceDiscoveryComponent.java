@@ -0,0 +1,73 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.rhq.core.pluginapi.inventory.DiscoveredResourceDetails;
+import org.rhq.core.pluginapi.inventory.InvalidPluginConfigurationException;
+import org.rhq.core.pluginapi.inventory.ResourceDiscoveryComponent;
+import org.rhq.core.pluginapi.inventory.ResourceDiscoveryContext;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Discovers the instances of a RAC database, keyed by <code>inst_id</code>.
+ * A database that is not clustered has none.
+ */
+public class OracleInstanceDiscoveryComponent implements ResourceDiscoveryComponent<OracleServerComponent> {
+
+    private static final String SQL_RETRIEVE_INSTANCES =
+        "SELECT " +
+        "   inst_id " +
+        "   , instance_name " +
+        "   , host_name " +
+        "   , version " +
+        "FROM " +
+        "   GV$INSTANCE " +
+        "WHERE " +
+        "   parallel = 'YES'";
+
+    public Set<DiscoveredResourceDetails> discoverResources(
+        ResourceDiscoveryContext<OracleServerComponent> discoveryContext) throws InvalidPluginConfigurationException,
+        Exception {
+        Set<DiscoveredResourceDetails> found = new HashSet<DiscoveredResourceDetails>();
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = discoveryContext.getParentResourceComponent().getConnectionPool().getConnection();
+            statement = connection.prepareStatement(SQL_RETRIEVE_INSTANCES);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                String name = resultSet.getString(2);
+                String host = resultSet.getString(3);
+                found.add(new DiscoveredResourceDetails(discoveryContext.getResourceType(), String.valueOf(resultSet
+                    .getInt(1)), name, resultSet.getString(4), "Oracle RAC instance " + name + " on " + host,
+                    discoveryContext.getDefaultPluginConfiguration(), null));
+            }
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in microseconds, with log-linear buckets
+ * in the manner of HdrHistogram: exact below 16, then eight buckets per power
+ * of two, so any percentile is within about 12% of the recorded value.
+ * <p>
+ * Recording is one atomic increment. Percentiles are read from the difference
+ * between two {@link #snapshot() snapshots}, so a reader can report on the
+ * interval since it last looked without resetting anything under the writers.
+ */
+public class OracleLatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The largest power of two tracked; about 12 days in microseconds. */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param micros a duration; negative values count as zero and huge ones
+     * land in the last bucket
+     */
+    public void record(long micros) {
+        this.counts.incrementAndGet(bucket(micros));
+    }
+
+    /**
+     * @return the current bucket counts, for {@link #percentile(long[], long[], double)}
+     */
+    public long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param current a snapshot
+     * @param previous an earlier snapshot, or null to count everything recorded
+     * @return the number of durations recorded between the snapshots
+     */
+    public static long count(long[] current, long[] previous) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += current[i] - ((previous != null) ? previous[i] : 0);
+        }
+        return count;
+    }
+
+    /**
+     * @param current a snapshot
+     * @param previous an earlier snapshot, or null to count everything recorded
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the duration in microseconds below which that share of the
+     * durations recorded between the snapshots fell, or NaN if none were
+     */
+    public static double percentile(long[] current, long[] previous, double quantile) {
+        long count = count(current, previous);
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += current[i] - ((previous != null) ? previous[i] : 0);
+            if (seen >= rank) {
+                return (lowerBound(i) + upperBound(i)) / 2d;
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    static int bucket(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (micros < 0) ? 0 : (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket)) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        return lowerBound(bucket) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+
+/**
+ * How to answer each request of one set of Oracle Server schedules, worked out
+ * once from the metric names. Each request maps by schedule id to a kind and a
+ * slot, so a collection cycle touches no metric names and no boxed values
+ * until the report is filled in.
+ * <p>
+ * A plan holds the array the statistics are collected into, so the server
+ * collects with one plan at a time.
+ */
+public class OracleMetricPlan {
+
+    static final byte SIZE = 0;
+    static final byte TRAIT = 1;
+    static final byte STATISTIC = 2;
+    static final byte RATE = 3;
+    static final byte RATIO = 4;
+    static final byte PARAMETER = 5;
+    static final byte CURSOR = 6;
+    static final byte WAIT_TIME = 7;
+    static final byte WAITS = 8;
+    static final byte TOP_SQL = 9;
+    static final byte QUERY_STATISTICS = 10;
+    static final byte CLUSTER = 11;
+
+    private final int generation;
+    private final LongIntHashMap indexes;
+    private final String[] names;
+    private final byte[] kinds;
+    private final int[] slots;
+    private final int[][] ratioStatistics;
+    private final int[] statistics;
+    private final double[] values;
+    private final boolean waitMetrics;
+    private final boolean queryMetrics;
+
+    private OracleMetricPlan(int generation, LongIntHashMap indexes, String[] names, byte[] kinds, int[] slots,
+        int[][] ratioStatistics, int[] statistics, int statisticLimit, boolean waitMetrics, boolean queryMetrics) {
+        this.generation = generation;
+        this.indexes = indexes;
+        this.names = names;
+        this.kinds = kinds;
+        this.slots = slots;
+        this.ratioStatistics = ratioStatistics;
+        this.statistics = statistics;
+        this.values = new double[statisticLimit];
+        this.waitMetrics = waitMetrics;
+        this.queryMetrics = queryMetrics;
+    }
+
+    /**
+     * Works out a plan for a set of requests.
+     * @param metrics the requested metrics
+     * @param collector resolves statistic names to numbers
+     * @param waitCollector resolves wait class names to numbers
+     * @return the plan
+     * @throws SQLException if the statistic or wait class names could not be read
+     */
+    public static OracleMetricPlan build(Set<MeasurementScheduleRequest> metrics, OracleSysStatCollector collector,
+        OracleWaitCollector waitCollector) throws SQLException {
+        // resolve the statistic names before reading the generation they belong to
+        int statisticLimit = collector.getStatisticLimit();
+        int generation = collector.getGeneration();
+        int size = metrics.size();
+        LongIntHashMap indexes = new LongIntHashMap(size);
+        String[] names = new String[size];
+        byte[] kinds = new byte[size];
+        int[] slots = new int[size];
+        int[][] ratioStatistics = new int[size][];
+        Set<Integer> statistics = new TreeSet<Integer>();
+        boolean waitMetrics = false;
+        boolean queryMetrics = false;
+
+        int index = 0;
+        for (MeasurementScheduleRequest request : metrics) {
+            String name = request.getName();
+            indexes.put(request.getScheduleId(), index);
+            names[index] = name;
+            int ratio = OracleRateCalculator.getRatio(name);
+            int queryMetric = OracleQueryStatistics.getMetric(name);
+            if (OracleDatabaseSizeCollector.isSizeMetric(name)) {
+                kinds[index] = SIZE;
+            } else if (OracleClusterSnapshot.isClusterMetric(name)) {
+                kinds[index] = CLUSTER;
+            } else if (OracleCursorLeakDetector.isCursorMetric(name)) {
+                kinds[index] = CURSOR;
+            } else if (OracleTopSqlSampler.isTopSqlMetric(name)) {
+                kinds[index] = TOP_SQL;
+            } else if (queryMetric >= 0) {
+                kinds[index] = QUERY_STATISTICS;
+                slots[index] = queryMetric;
+                queryMetrics = true;
+            } else if (request.getDataType() == DataType.TRAIT) {
+                kinds[index] = TRAIT;
+            } else if (OracleWaitCollector.isWaitMetric(name) && (waitCollector.getWaitClass(name) >= 0)) {
+                kinds[index] = OracleWaitCollector.isWaitTimeMetric(name) ? WAIT_TIME : WAITS;
+                slots[index] = waitCollector.getWaitClass(name);
+                waitMetrics = true;
+            } else if (OracleRateCalculator.isRate(name)) {
+                kinds[index] = RATE;
+                slots[index] = collector.getStatisticNumber(OracleRateCalculator.getRateStatistic(name));
+                addStatistic(statistics, slots[index]);
+            } else if (ratio >= 0) {
+                kinds[index] = RATIO;
+                slots[index] = ratio;
+                String[] operands = OracleRateCalculator.getRatioStatistics(ratio);
+                ratioStatistics[index] = new int[operands.length];
+                for (int i = 0; i < operands.length; i++) {
+                    ratioStatistics[index][i] = collector.getStatisticNumber(operands[i]);
+                    addStatistic(statistics, ratioStatistics[index][i]);
+                }
+            } else {
+                slots[index] = collector.getStatisticNumber(name);
+                kinds[index] = (slots[index] >= 0) ? STATISTIC : PARAMETER;
+                addStatistic(statistics, slots[index]);
+            }
+            index++;
+        }
+
+        int[] numbers = new int[statistics.size()];
+        index = 0;
+        for (Integer statistic : statistics) {
+            numbers[index++] = statistic;
+        }
+        return new OracleMetricPlan(generation, indexes, names, kinds, slots, ratioStatistics, numbers,
+            statisticLimit, waitMetrics, queryMetrics);
+    }
+
+    private static void addStatistic(Set<Integer> statistics, int statistic) {
+        if (statistic >= 0) {
+            statistics.add(statistic);
+        }
+    }
+
+    /**
+     * @param metrics the requested metrics
+     * @param generation the collector's current generation
+     * @return true if this plan answers exactly these requests
+     */
+    public boolean matches(Set<MeasurementScheduleRequest> metrics, int generation) {
+        if ((generation != this.generation) || (metrics.size() != this.names.length)) {
+            return false;
+        }
+        for (MeasurementScheduleRequest request : metrics) {
+            int index = this.indexes.get(request.getScheduleId());
+            if ((index == LongIntHashMap.NO_VALUE) || !this.names[index].equals(request.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param request one of the planned requests
+     * @return the index of the request in this plan, or -1 if it is not planned
+     */
+    public int indexOf(MeasurementScheduleRequest request) {
+        return this.indexes.get(request.getScheduleId());
+    }
+
+    public String getName(int index) {
+        return this.names[index];
+    }
+
+    public byte getKind(int index) {
+        return this.kinds[index];
+    }
+
+    /**
+     * @param index a request index
+     * @return the statistic number of a STATISTIC or RATE request, the ratio id of a RATIO request, the
+     * <code>wait_class#</code> of a WAIT_TIME or WAITS request, the metric id of a QUERY_STATISTICS request
+     */
+    public int getSlot(int index) {
+        return this.slots[index];
+    }
+
+    /**
+     * @param index the index of a RATIO request
+     * @return the numbers of the statistics the ratio is computed from
+     */
+    public int[] getRatioStatistics(int index) {
+        return this.ratioStatistics[index];
+    }
+
+    /**
+     * @return the distinct statistic numbers to collect, in ascending order
+     */
+    public int[] getStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * @return true if the wait classes need collecting for this plan
+     */
+    public boolean hasWaitMetrics() {
+        return this.waitMetrics;
+    }
+
+    /**
+     * @return true if the plugin's query statistics are requested by this plan
+     */
+    public boolean hasQueryMetrics() {
+        return this.queryMetrics;
+    }
+
+    /**
+     * @return the reusable array statistics are collected into, indexed by statistic number
+     */
+    public double[] getValues() {
+        return this.values;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementDataTrait;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.pluginapi.measurement.MeasurementFacet;
+import org.rhq.plugins.database.AbstractDatabaseComponent;
+import org.rhq.plugins.oracle.OraclePdbSnapshot.Pdb;
+import org.rhq.plugins.oracle.OracleSnapshotCache.Snapshot;
+
+/**
+ * One pluggable database of a container database, answered from the PDB
+ * snapshot its Oracle Server shares between all PDBs, so no PDB needs a
+ * connection of its own.
+ */
+public class OraclePdbComponent extends AbstractDatabaseComponent<OracleServerComponent> implements
+    MeasurementFacet {
+    static final String TRAIT_OPEN_MODE = "open mode";
+
+    /** The PDB snapshot age, in milliseconds, from which availability checks start a background reload. */
+    private static final long AVAILABILITY_MAX_AGE = 30 * 1000L;
+
+    /** The oldest PDB snapshot availability is decided from; older ones defer to the server. */
+    private static final long AVAILABILITY_STALE_AGE = 10 * 60 * 1000L;
+
+    /**
+     * Decided from the latest PDB snapshot only, so the availability
+     * thread never runs its query; without a recent one, or while collection
+     * is suspended, the server's own verdict stands.
+     */
+    public AvailabilityType getAvailability() {
+        OracleServerComponent server = this.resourceContext.getParentResourceComponent();
+        if (server.isCollectionSuspended()) {
+            return server.getAvailability();
+        }
+        Snapshot<Map<Integer, Pdb>> snapshot = server.getPdbSnapshot().peek(AVAILABILITY_MAX_AGE);
+        if ((snapshot == null) || (System.currentTimeMillis() - snapshot.getTimestamp() > AVAILABILITY_STALE_AGE)) {
+            return server.getAvailability();
+        }
+        Pdb pdb = snapshot.getValue().get(getConId());
+        return ((pdb != null) && pdb.isOpen()) ? AvailabilityType.UP : AvailabilityType.DOWN;
+    }
+
+    public void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> metrics) throws Exception {
+        OracleServerComponent server = this.resourceContext.getParentResourceComponent();
+        if (server.isCollectionSuspended()) {
+            return;
+        }
+        OraclePdbSnapshot cache = server.getPdbSnapshot();
+        Snapshot<Map<Integer, Pdb>> snapshot = cache.get(OracleSnapshotCache.getMaxAge(metrics));
+        if (snapshot == null) {
+            // the first background refresh has not completed yet
+            return;
+        }
+        Pdb pdb = snapshot.getValue().get(getConId());
+        if (pdb == null) {
+            return;
+        }
+
+        for (MeasurementScheduleRequest request : metrics) {
+            if (!cache.markReported(request, snapshot)) {
+                // this snapshot was already reported, no newer one is loaded yet
+                continue;
+            }
+            if (request.getName().equals(TRAIT_OPEN_MODE)) {
+                report.addData(new MeasurementDataTrait(snapshot.getTimestamp(), request, pdb.getOpenMode()));
+                continue;
+            }
+            double value = pdb.getValue(request.getName());
+            if (!Double.isNaN(value)) {
+                report.addData(new MeasurementDataNumeric(snapshot.getTimestamp(), request, value));
+            }
+        }
+    }
+
+    private Integer getConId() {
+        return Integer.valueOf(this.resourceContext.getResourceKey());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.rhq.core.pluginapi.inventory.DiscoveredResourceDetails;
+import org.rhq.core.pluginapi.inventory.InvalidPluginConfigurationException;
+import org.rhq.core.pluginapi.inventory.ResourceDiscoveryComponent;
+import org.rhq.core.pluginapi.inventory.ResourceDiscoveryContext;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Discovers the pluggable databases of a container database, keyed by
+ * <code>con_id</code>. A database that is not a CDB, or predates 12c, has none.
+ */
+public class OraclePdbDiscoveryComponent implements ResourceDiscoveryComponent<OracleServerComponent> {
+    private static final Log LOG = LogFactory.getLog(OraclePdbDiscoveryComponent.class);
+
+    private static final String SQL_RETRIEVE_PDBS =
+        "SELECT " +
+        "   p.con_id " +
+        "   , p.name " +
+        "   , i.version " +
+        "FROM " +
+        "   V$PDBS p " +
+        "   , V$INSTANCE i " +
+        "WHERE " +
+        "   p.con_id > 2";
+
+    public Set<DiscoveredResourceDetails> discoverResources(
+        ResourceDiscoveryContext<OracleServerComponent> discoveryContext) throws InvalidPluginConfigurationException,
+        Exception {
+        Set<DiscoveredResourceDetails> found = new HashSet<DiscoveredResourceDetails>();
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = discoveryContext.getParentResourceComponent().getConnectionPool().getConnection();
+            statement = connection.prepareStatement(SQL_RETRIEVE_PDBS);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                String name = resultSet.getString(2);
+                found.add(new DiscoveredResourceDetails(discoveryContext.getResourceType(), String.valueOf(resultSet
+                    .getInt(1)), name, resultSet.getString(3), "Oracle pluggable database " + name,
+                    discoveryContext.getDefaultPluginConfiguration(), null));
+            }
+        } catch (SQLException e) {
+            // V$PDBS only exists from 12c on
+            LOG.debug("Unable to list pluggable databases", e);
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * The statistic and time model rates of every pluggable database of a
+ * container database, read over the root connection with a single query and
+ * demultiplexed by <code>con_id</code>, so no PDB needs a connection of its
+ * own. The rates of a PDB are computed against the previous snapshot, and are
+ * NaN in the first snapshot after it was (re)opened.
+ */
+public class OraclePdbSnapshot extends OracleSnapshotCache<Map<Integer, OraclePdbSnapshot.Pdb>> {
+
+    /** The V$CON_SYSSTAT statistics whose rates are reported per PDB. */
+    private static final String[] STATISTICS = { "logons cumulative", "user commits", "user rollbacks",
+        "user calls", "execute count", "parse count (hard)", "session logical reads", "physical reads",
+        "redo size" };
+
+    /** The V$CON_SYS_TIME_MODEL statistics whose rates are reported per PDB. */
+    private static final String[] TIME_MODEL = { "DB time", "DB CPU" };
+
+    /**
+     * Each row is a PDB (P), a statistic (S) or a time model statistic (T),
+     * the latter converted from microseconds to milliseconds; the open time is
+     * in seconds since the epoch. CDB$ROOT (1) and PDB$SEED (2) are left out.
+     */
+    private static final String SQL_RETRIEVE_PDBS =
+        "SELECT " +
+        "   p.con_id " +
+        "   , 'P' " +
+        "   , p.name " +
+        "   , p.open_mode " +
+        "   , NVL((CAST(p.open_time AS DATE) - TO_DATE('19700101', 'YYYYMMDD')) * 86400, 0) " +
+        "FROM " +
+        "   V$PDBS p " +
+        "WHERE " +
+        "   p.con_id > 2 " +
+        "UNION ALL " +
+        "SELECT " +
+        "   s.con_id " +
+        "   , 'S' " +
+        "   , s.name " +
+        "   , NULL " +
+        "   , s.value " +
+        "FROM " +
+        "   V$CON_SYSSTAT s " +
+        "WHERE " +
+        "   s.con_id > 2 " +
+        "   AND s.name IN " + OracleClusterSnapshot.getNameList(STATISTICS) + " " +
+        "UNION ALL " +
+        "SELECT " +
+        "   t.con_id " +
+        "   , 'T' " +
+        "   , t.stat_name " +
+        "   , NULL " +
+        "   , t.value / 1000 " +
+        "FROM " +
+        "   V$CON_SYS_TIME_MODEL t " +
+        "WHERE " +
+        "   t.con_id > 2 " +
+        "   AND t.stat_name IN " + OracleClusterSnapshot.getNameList(TIME_MODEL);
+
+    /**
+     * @param connectionPool the pool of the Oracle Server, connected to CDB$ROOT
+     */
+    public OraclePdbSnapshot(OracleConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    @Override
+    protected Map<Integer, Pdb> load(Connection connection) throws SQLException {
+        Snapshot<Map<Integer, Pdb>> previous = getLatest();
+        Map<Integer, Pdb> pdbs = new HashMap<Integer, Pdb>();
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(SQL_RETRIEVE_PDBS);
+            statement.setFetchSize(500);
+            resultSet = statement.executeQuery();
+            long now = System.currentTimeMillis();
+            while (resultSet.next()) {
+                Integer id = resultSet.getInt(1);
+                Pdb pdb = pdbs.get(id);
+                if (pdb == null) {
+                    pdb = new Pdb(id, now);
+                    pdbs.put(id, pdb);
+                }
+                String kind = resultSet.getString(2);
+                String name = resultSet.getString(3);
+                if ("P".equals(kind)) {
+                    pdb.name = name;
+                    pdb.openMode = resultSet.getString(4);
+                    pdb.setStartupTime(resultSet.getLong(5));
+                } else {
+                    pdb.putTotal(name + OracleRateCalculator.RATE_SUFFIX, resultSet.getDouble(5));
+                }
+            }
+        } finally {
+            JDBCUtil.safeClose(statement, resultSet);
+        }
+
+        for (Iterator<Pdb> i = pdbs.values().iterator(); i.hasNext();) {
+            Pdb pdb = i.next();
+            if (pdb.name == null) {
+                // dropped between the branches of the query
+                i.remove();
+                continue;
+            }
+            Pdb before = (previous != null) ? previous.getValue().get(pdb.getId()) : null;
+            pdb.computeRates(before);
+        }
+        return Collections.unmodifiableMap(pdbs);
+    }
+
+    /**
+     * One pluggable database at the time of the snapshot.
+     */
+    public static class Pdb extends OracleCounterSample {
+        private String name;
+        private String openMode;
+
+        Pdb(int id, long sampleTime) {
+            super(id, sampleTime);
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return MOUNTED, READ ONLY, READ WRITE or MIGRATE
+         */
+        public String getOpenMode() {
+            return this.openMode;
+        }
+
+        public boolean isOpen() {
+            return (this.openMode != null) && this.openMode.startsWith("READ");
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the plugin's own queries cost: every statement executed through an
+ * {@link OracleConnectionPool}, the rows read, the wait for a connection, and
+ * the duration of each Oracle Server collection cycle. Recording never locks.
+ * <p>
+ * The metrics describe the interval between two calls to {@link #roll()}, which
+ * the server makes once per collection of these metrics, so that they show the
+ * plugin's recent cost rather than an average since the agent started.
+ */
+public class OracleQueryStatistics {
+
+    static final String METRIC_COLLECTION_P50 = "collectionDurationP50";
+    static final String METRIC_COLLECTION_P99 = "collectionDurationP99";
+    static final String METRIC_QUERY_P50 = "queryDurationP50";
+    static final String METRIC_QUERY_P99 = "queryDurationP99";
+    static final String METRIC_CONNECTION_WAIT_P99 = "connectionWaitP99";
+    static final String METRIC_QUERIES_PER_INTERVAL = "queriesPerInterval";
+    static final String METRIC_ROWS_PER_INTERVAL = "rowsPerInterval";
+    static final String METRIC_FAILED_QUERIES = "failedQueries";
+    static final String METRIC_TIMED_OUT_QUERIES = "timedOutQueries";
+    static final String METRIC_SKIPPED_COLLECTIONS = "skippedCollections";
+
+    /** Metric names, indexed by metric id. */
+    private static final String[] METRICS = { METRIC_COLLECTION_P50, METRIC_COLLECTION_P99, METRIC_QUERY_P50,
+        METRIC_QUERY_P99, METRIC_CONNECTION_WAIT_P99, METRIC_QUERIES_PER_INTERVAL, METRIC_ROWS_PER_INTERVAL,
+        METRIC_FAILED_QUERIES, METRIC_TIMED_OUT_QUERIES, METRIC_SKIPPED_COLLECTIONS };
+
+    /** ORA-01013: user requested cancel of current operation, raised by a query timeout. */
+    private static final int ORA_CANCELLED = 1013;
+
+    /** The SQL state of the timeouts raised by the plugin itself. */
+    static final String SQL_STATE_TIMEOUT = "HYT00";
+
+    private final OracleLatencyHistogram collections = new OracleLatencyHistogram();
+    private final OracleLatencyHistogram queries = new OracleLatencyHistogram();
+    private final OracleLatencyHistogram connectionWaits = new OracleLatencyHistogram();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /** The state at the previous roll; guarded by this. */
+    private long[] previousCollections;
+    private long[] previousQueries;
+    private long[] previousConnectionWaits;
+    private long previousRows;
+    private long previousFailures;
+    private long previousTimeouts;
+    private long previousSkipped;
+
+    /** The metric values of the last interval, indexed by metric id. */
+    private volatile double[] values;
+
+    /**
+     * @param name a metric name
+     * @return the metric id, or -1 if the metric is not served by this class
+     */
+    public static int getMetric(String name) {
+        for (int i = 0; i < METRICS.length; i++) {
+            if (METRICS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param nanos how long a statement took to execute
+     */
+    public void recordQuery(long nanos) {
+        this.queries.record(nanos / 1000);
+    }
+
+    /**
+     * @param e why a statement or connection failed
+     */
+    public void recordFailure(SQLException e) {
+        this.failures.incrementAndGet();
+        if (isTimeout(e)) {
+            this.timeouts.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a collection cycle skipped while the collection breaker was open.
+     */
+    public void recordSkippedCollection() {
+        this.skipped.incrementAndGet();
+    }
+
+    /**
+     * @param e a failure, possibly wrapped
+     * @return whether it, or its cause, is a query or connection timeout
+     */
+    public static boolean isTimeout(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                SQLException sqle = (SQLException) t;
+                if ((sqle.getErrorCode() == ORA_CANCELLED) || SQL_STATE_TIMEOUT.equals(sqle.getSQLState())
+                    || t.getClass().getName().endsWith("SQLTimeoutException")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts a wait for a pooled connection that timed out.
+     */
+    public void recordConnectionTimeout() {
+        this.failures.incrementAndGet();
+        this.timeouts.incrementAndGet();
+    }
+
+    /**
+     * @param count the rows read from one result set
+     */
+    public void recordRows(long count) {
+        this.rows.addAndGet(count);
+    }
+
+    /**
+     * @param nanos how long it took to hand out a pooled connection
+     */
+    public void recordConnectionWait(long nanos) {
+        this.connectionWaits.record(nanos / 1000);
+    }
+
+    /**
+     * @param nanos how long one collection cycle took
+     */
+    public void recordCollection(long nanos) {
+        this.collections.record(nanos / 1000);
+    }
+
+    /**
+     * Closes the current interval; its metrics are served until the next roll.
+     * Durations are in milliseconds. Nothing is reported for the first
+     * interval, which has no beginning.
+     */
+    public synchronized void roll() {
+        long[] currentCollections = this.collections.snapshot();
+        long[] currentQueries = this.queries.snapshot();
+        long[] currentConnectionWaits = this.connectionWaits.snapshot();
+        long currentRows = this.rows.get();
+        long currentFailures = this.failures.get();
+        long currentTimeouts = this.timeouts.get();
+        long currentSkipped = this.skipped.get();
+
+        if (this.previousCollections != null) {
+            double[] values = new double[METRICS.length];
+            long queryCount = OracleLatencyHistogram.count(currentQueries, this.previousQueries);
+            values[0] = millis(currentCollections, this.previousCollections, 0.5);
+            values[1] = millis(currentCollections, this.previousCollections, 0.99);
+            values[2] = millis(currentQueries, this.previousQueries, 0.5);
+            values[3] = millis(currentQueries, this.previousQueries, 0.99);
+            values[4] = millis(currentConnectionWaits, this.previousConnectionWaits, 0.99);
+            values[5] = queryCount;
+            values[6] = currentRows - this.previousRows;
+            values[7] = currentFailures - this.previousFailures;
+            values[8] = currentTimeouts - this.previousTimeouts;
+            values[9] = currentSkipped - this.previousSkipped;
+            this.values = values;
+        }
+
+        this.previousCollections = currentCollections;
+        this.previousQueries = currentQueries;
+        this.previousConnectionWaits = currentConnectionWaits;
+        this.previousRows = currentRows;
+        this.previousFailures = currentFailures;
+        this.previousTimeouts = currentTimeouts;
+        this.previousSkipped = currentSkipped;
+    }
+
+    /**
+     * @param metric a metric id
+     * @return the value over the last interval, or NaN before the first one
+     */
+    public double getValue(int metric) {
+        double[] current = this.values;
+        return (current != null) ? current[metric] : Double.NaN;
+    }
+
+    private static double millis(long[] current, long[] previous, double quantile) {
+        return OracleLatencyHistogram.percentile(current, previous, quantile) / 1000d;
+    }
+}
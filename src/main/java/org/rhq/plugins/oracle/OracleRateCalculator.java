@@ -0,0 +1,188 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.util.Arrays;
+
+/**
+ * Turns the cumulative V$SYSSTAT counters into per-second rates and ratios.
+ * <p>
+ * The previous sample of every counter is kept with its own timestamp, since
+ * different schedules collect different counters at different intervals. All
+ * samples are dropped when the instance startup time changes. Samples are held
+ * in arrays indexed by <code>statistic#</code>, so updates never allocate.
+ */
+public class OracleRateCalculator {
+
+    /** Appended to a statistic name to request its rate, e.g. "user commits per second". */
+    static final String RATE_SUFFIX = " per second";
+
+    static final String BUFFER_CACHE_HIT_RATIO = "bufferCacheHitRatio";
+    static final String PARSE_TO_EXECUTE_RATIO = "parseToExecuteRatio";
+    static final String SOFT_PARSE_RATIO = "softParseRatio";
+
+    private static final String PHYSICAL_READS_CACHE = "physical reads cache";
+    private static final String CONSISTENT_GETS_FROM_CACHE = "consistent gets from cache";
+    private static final String DB_BLOCK_GETS_FROM_CACHE = "db block gets from cache";
+    private static final String PARSE_COUNT_TOTAL = "parse count (total)";
+    private static final String PARSE_COUNT_HARD = "parse count (hard)";
+    private static final String EXECUTE_COUNT = "execute count";
+
+    /** Ratio names, indexed by ratio id. */
+    private static final String[] RATIOS = { BUFFER_CACHE_HIT_RATIO, PARSE_TO_EXECUTE_RATIO, SOFT_PARSE_RATIO };
+
+    /** The statistics each ratio is computed from, indexed by ratio id. */
+    private static final String[][] RATIO_STATISTICS = {
+        { PHYSICAL_READS_CACHE, CONSISTENT_GETS_FROM_CACHE, DB_BLOCK_GETS_FROM_CACHE },
+        { PARSE_COUNT_TOTAL, EXECUTE_COUNT },
+        { PARSE_COUNT_HARD, PARSE_COUNT_TOTAL } };
+
+    private long startupTime = -1;
+    private double[] values = new double[0];
+    private long[] timestamps = new long[0];
+    private double[] deltas = new double[0];
+    private double[] elapsedSeconds = new double[0];
+
+    /**
+     * @param metric a metric name
+     * @return true if the metric is the rate of a statistic
+     */
+    public static boolean isRate(String metric) {
+        return metric.endsWith(RATE_SUFFIX);
+    }
+
+    /**
+     * @param metric a rate metric name
+     * @return the name of the statistic the rate is computed from
+     */
+    public static String getRateStatistic(String metric) {
+        return metric.substring(0, metric.length() - RATE_SUFFIX.length());
+    }
+
+    /**
+     * @param metric a metric name
+     * @return the ratio id of the metric, or -1 if it is not a ratio
+     */
+    public static int getRatio(String metric) {
+        for (int i = 0; i < RATIOS.length; i++) {
+            if (RATIOS[i].equals(metric)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param ratio a ratio id
+     * @return the names of the statistics the ratio is computed from, in the
+     * order {@link #getRatio(int, int[])} expects their numbers
+     */
+    public static String[] getRatioStatistics(int ratio) {
+        return RATIO_STATISTICS[ratio].clone();
+    }
+
+    /**
+     * Records a new sample of some counters.
+     * @param startupTime the instance startup time the sample was taken under
+     * @param timestamp when the sample was taken, in milliseconds
+     * @param statistics the statistic numbers sampled
+     * @param sample the sampled values indexed by statistic number, NaN where missing
+     */
+    public synchronized void update(long startupTime, long timestamp, int[] statistics, double[] sample) {
+        if (startupTime != this.startupTime) {
+            Arrays.fill(this.timestamps, 0);
+            this.startupTime = startupTime;
+        }
+        if (this.values.length < sample.length) {
+            grow(sample.length);
+        }
+
+        for (int statistic : statistics) {
+            double value = sample[statistic];
+            long previous = this.timestamps[statistic];
+            if (Double.isNaN(value) || ((previous != 0) && (timestamp <= previous))) {
+                continue;
+            }
+            if (previous == 0) {
+                this.deltas[statistic] = Double.NaN;
+            } else {
+                // a counter going backwards has been reset, so there is no meaningful delta
+                this.deltas[statistic] = (value >= this.values[statistic]) ? value - this.values[statistic]
+                    : Double.NaN;
+                this.elapsedSeconds[statistic] = (timestamp - previous) / 1000d;
+            }
+            this.values[statistic] = value;
+            this.timestamps[statistic] = timestamp;
+        }
+    }
+
+    /**
+     * @param statistic a statistic number
+     * @return the per-second rate over the last two samples, or NaN until two samples exist
+     */
+    public synchronized double getRate(int statistic) {
+        double delta = getDelta(statistic);
+        return Double.isNaN(delta) ? Double.NaN : delta / this.elapsedSeconds[statistic];
+    }
+
+    /**
+     * @param ratio a ratio id
+     * @param statistics the numbers of the statistics named by {@link #getRatioStatistics(int)}
+     * @return the ratio over the last two samples, or NaN until it can be computed
+     */
+    public synchronized double getRatio(int ratio, int[] statistics) {
+        switch (ratio) {
+        case 0:
+            double logicalReads = getDelta(statistics[1]) + getDelta(statistics[2]);
+            return 1 - ratio(getDelta(statistics[0]), logicalReads);
+        case 1:
+            return ratio(getDelta(statistics[0]), getDelta(statistics[1]));
+        case 2:
+            return 1 - ratio(getDelta(statistics[0]), getDelta(statistics[1]));
+        default:
+            return Double.NaN;
+        }
+    }
+
+    private double getDelta(int statistic) {
+        if ((statistic < 0) || (statistic >= this.deltas.length) || (this.timestamps[statistic] == 0)) {
+            return Double.NaN;
+        }
+        return this.deltas[statistic];
+    }
+
+    private static double ratio(double numerator, double denominator) {
+        return (denominator == 0) ? Double.NaN : numerator / denominator;
+    }
+
+    private void grow(int length) {
+        double[] newValues = new double[length];
+        long[] newTimestamps = new long[length];
+        double[] newDeltas = new double[length];
+        double[] newElapsedSeconds = new double[length];
+        System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+        System.arraycopy(this.timestamps, 0, newTimestamps, 0, this.timestamps.length);
+        System.arraycopy(this.deltas, 0, newDeltas, 0, this.deltas.length);
+        System.arraycopy(this.elapsedSeconds, 0, newElapsedSeconds, 0, this.elapsedSeconds.length);
+        this.values = newValues;
+        this.timestamps = newTimestamps;
+        this.deltas = newDeltas;
+        this.elapsedSeconds = newElapsedSeconds;
+    }
+}
@@ -3,56 +3,55 @@
  */
 package org.rhq.plugins.oracle;
 
-import java.sql.PreparedStatement;
+import java.sql.Connection;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Map;
 import java.util.Set;
 
 import org.rhq.core.domain.configuration.Configuration;
-import org.rhq.core.domain.configuration.PropertySimple;
 import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
 import org.rhq.core.domain.measurement.MeasurementReport;
 import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
 import org.rhq.core.pluginapi.measurement.MeasurementFacet;
 import org.rhq.core.pluginapi.operation.OperationFacet;
 import org.rhq.core.pluginapi.operation.OperationResult;
-import org.rhq.core.util.jdbc.JDBCUtil;
 import org.rhq.plugins.database.AbstractDatabaseComponent;
-import org.rhq.plugins.database.DatabaseComponent;
+import org.rhq.plugins.oracle.OracleSchemaSnapshot.SchemaStatistics;
+import org.rhq.plugins.oracle.OracleSnapshotCache.Snapshot;
 
 /**
  * @author isaac
  * 
  */
-public class OracleSchemaComponent extends AbstractDatabaseComponent<DatabaseComponent>
+public class OracleSchemaComponent extends AbstractDatabaseComponent<OracleServerComponent>
 		implements MeasurementFacet, OperationFacet {
-    private static final String SQL_QUERY_AVAILABILITY = "SELECT owner FROM dba_tables WHERE owner = ?";
-	
     /*
 	 * (non-Javadoc)
 	 * @see org.rhq.core.pluginapi.availability.AvailabilityFacet#getAvailability()
 	 */
 	public AvailabilityType getAvailability() {
-		PreparedStatement statement = null;
-		ResultSet resultSet = null;
 		try {
-			statement = getConnection().prepareStatement(SQL_QUERY_AVAILABILITY);
-			statement.setString(1, this.resourceContext.getResourceKey());
-			resultSet = statement.executeQuery();
-			if (resultSet.next()) {
+			if (this.resourceContext.getParentResourceComponent().getSchemaIndex()
+					.exists(this.resourceContext.getResourceKey())) {
 				return AvailabilityType.UP;
 			}
 		} catch (SQLException e) {
 			// Problems ? Mark the resource as down
-		} finally {
-			JDBCUtil.safeClose(statement, resultSet);
 		}
 
 		return AvailabilityType.DOWN;
 	}
 
+	/**
+	 * @return the connection pool of the parent Oracle Server
+	 */
+	private OracleConnectionPool getConnectionPool() {
+		return this.resourceContext.getParentResourceComponent().getConnectionPool();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -60,10 +59,51 @@ public class OracleSchemaComponent extends AbstractDatabaseComponent<DatabaseCom
 	 * org.rhq.core.pluginapi.measurement.MeasurementFacet#getValues(org.rhq
 	 * .core.domain.measurement.MeasurementReport, java.util.Set)
 	 */
-	public void getValues(MeasurementReport arg0,
-			Set<MeasurementScheduleRequest> arg1) throws Exception {
-		// TODO Auto-generated method stub
+	public void getValues(MeasurementReport report,
+			Set<MeasurementScheduleRequest> metrics) throws Exception {
+		if (this.resourceContext.getParentResourceComponent()
+				.isCollectionSuspended()) {
+			return;
+		}
+		OracleSchemaSnapshot cache = this.resourceContext
+				.getParentResourceComponent().getSchemaSnapshot();
+		Snapshot<Map<String, SchemaStatistics>> snapshot = cache
+				.get(OracleSnapshotCache.getMaxAge(metrics));
+		if (snapshot == null) {
+			// the first background refresh has not completed yet
+			return;
+		}
+		SchemaStatistics schema = snapshot.getValue().get(
+				this.resourceContext.getResourceKey());
+		if (schema == null) {
+			schema = SchemaStatistics.NONE;
+		}
 
+		for (MeasurementScheduleRequest request : metrics) {
+			String name = request.getName();
+			double value;
+			if (name.equals("segmentBytes")) {
+				value = schema.getSegmentBytes();
+			} else if (name.equals("tables")) {
+				value = schema.getTables();
+			} else if (name.equals("indexes")) {
+				value = schema.getIndexes();
+			} else if (name.equals("lobs")) {
+				value = schema.getLobs();
+			} else if (name.equals("rowEstimate")) {
+				value = schema.getRowEstimate();
+			} else if (name.equals("staleStatistics")) {
+				value = schema.getStaleStatistics();
+			} else {
+				continue;
+			}
+			if (!cache.markReported(request, snapshot)) {
+				// this snapshot was already reported, no newer one is loaded yet
+				continue;
+			}
+			report.addData(new MeasurementDataNumeric(snapshot.getTimestamp(),
+					request, value));
+		}
 	}
 
 	/*
@@ -73,63 +113,117 @@ public class OracleSchemaComponent extends AbstractDatabaseComponent<DatabaseCom
 	public OperationResult invokeOperation(String name, Configuration parameters)
 			throws InterruptedException, Exception {
 		if ("invokeSql".equals(name)) {
-            Statement stmt = null;
-            ResultSet rs = null;
-            try {
-                stmt = getConnection().createStatement();
-                String sql = parameters.getSimple("sql").getStringValue();
-                OperationResult result = new OperationResult();
-
-                if (parameters.getSimple("type").getStringValue().equals("update")) {
-                    int updateCount = stmt.executeUpdate(sql);
-                    result.getComplexResults().put(new PropertySimple("result", "Query updated " + updateCount + " rows"));
-
-                } else {
-                    rs = stmt.executeQuery(parameters.getSimple("sql").getStringValue());
-
-                    ResultSetMetaData md = rs.getMetaData();
-                    StringBuilder buf = new StringBuilder();
-                    int rowCount = 0;
-
-                    buf.append("<table>");
-                    buf.append("<th>");
-                    for (int i = 1; i <= md.getColumnCount(); i++) {
-                        buf.append("<td>");
-                        buf.append(md.getColumnName(i) + " (" + md.getColumnTypeName(i) + ")");
-                        buf.append("</td>");
-                    }
-                    buf.append("</th>");
-
-
-                    while (rs.next()) {
-                        rowCount++;
-                        buf.append("<tr>");
-                        for (int i = 1; i <= md.getColumnCount(); i++) {
-                            buf.append("<td>");
-                            buf.append(rs.getString(i));
-                            buf.append("</td>");
-                        }
-                        buf.append("</tr>");
-                    }
-
-                    buf.append("</table>");
-                    result.getComplexResults().put(new PropertySimple("result", "Query returned " + rowCount + " rows"));
-                    result.getComplexResults().put(new PropertySimple("contents", buf.toString()));
-                }
-                return result;
-            } finally {
-                if (rs != null) {
-                    rs.close();
-                }
-
-                if (stmt != null) {
-                    stmt.close();
-                }
-            }
+			return invokeSql(getConnectionPool(), parameters);
 		} else {
             throw new UnsupportedOperationException("Operation [" + name + "] is not supported yet.");
         }
 
 	}
 
+	/**
+	 * Runs an ad-hoc query; package-private so that the benchmarks can call
+	 * it without a parent server. Only queries are accepted, as the statement
+	 * runs as the monitoring account, often SYS.
+	 * @param connectionPool the pool to borrow a connection from
+	 * @param parameters the invokeSql operation parameters
+	 * @return the rows in the requested format
+	 * @throws SQLException if the query fails
+	 */
+	static OperationResult invokeSql(OracleConnectionPool connectionPool, Configuration parameters)
+			throws SQLException {
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            String sql = parameters.getSimple("sql").getStringValue();
+            if (!isQuery(sql)) {
+                // Oracle runs any statement handed to executeQuery
+                throw new IllegalArgumentException("Only SELECT and WITH queries can be run");
+            }
+            conn = connectionPool.getConnection();
+            stmt = conn.createStatement();
+            stmt.setQueryTimeout(getIntParameter(parameters, "queryTimeout", 60));
+            OperationResult result = new OperationResult();
+
+            int maxRows = getIntParameter(parameters, "maxRows", 1000);
+            stmt.setFetchSize(getIntParameter(parameters, "fetchSize", 100));
+            if (maxRows > 0) {
+                // one extra row tells us whether the result had to be truncated
+                stmt.setMaxRows(maxRows + 1);
+            }
+            rs = stmt.executeQuery(sql);
+
+            OracleSqlResultWriter.forFormat(parameters.getSimpleValue("outputFormat", "html"), maxRows)
+                .write(rs, result);
+            return result;
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+
+            if (stmt != null) {
+                stmt.close();
+            }
+
+            if (conn != null) {
+                conn.close();
+            }
+        }
+	}
+
+	/**
+	 * @param sql a statement
+	 * @return true if the statement starts with SELECT or WITH, after any
+	 * leading whitespace, comments and parentheses
+	 */
+	static boolean isQuery(String sql) {
+		if (sql == null) {
+			return false;
+		}
+		int i = 0;
+		while (i < sql.length()) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c) || (c == '(')) {
+				i++;
+			} else if (sql.startsWith("--", i)) {
+				int end = sql.indexOf('\n', i);
+				i = (end < 0) ? sql.length() : end + 1;
+			} else if (sql.startsWith("/*", i)) {
+				int end = sql.indexOf("*/", i + 2);
+				i = (end < 0) ? sql.length() : end + 2;
+			} else {
+				break;
+			}
+		}
+		return startsWithKeyword(sql, i, "SELECT") || startsWithKeyword(sql, i, "WITH");
+	}
+
+	/**
+	 * @return true if the keyword is at the offset and not followed by another
+	 * identifier character, whatever follows it otherwise, line breaks included
+	 */
+	private static boolean startsWithKeyword(String sql, int offset, String keyword) {
+		if (!sql.regionMatches(true, offset, keyword, 0, keyword.length())) {
+			return false;
+		}
+		int end = offset + keyword.length();
+		if (end == sql.length()) {
+			return true;
+		}
+		char next = sql.charAt(end);
+		return !Character.isLetterOrDigit(next) && (next != '_') && (next != '$') && (next != '#');
+	}
+
+	private static int getIntParameter(Configuration parameters, String name, int defaultValue) {
+		String value = parameters.getSimpleValue(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Parameter [" + name + "] must be a number, not [" + value + "]");
+		}
+	}
+
 }
@@ -0,0 +1,150 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Segment and optimizer statistics of every schema, read with one pass over
+ * DBA_SEGMENTS and DBA_TAB_STATISTICS grouped by owner.
+ */
+public class OracleSchemaSnapshot extends OracleSnapshotCache<Map<String, OracleSchemaSnapshot.SchemaStatistics>> {
+
+    private static final String SQL_RETRIEVE_SCHEMA_STATISTICS =
+        "SELECT " +
+        "   NVL(seg.owner, st.owner) " +
+        "   , NVL(seg.bytes, 0) " +
+        "   , NVL(seg.tables, 0) " +
+        "   , NVL(seg.indexes, 0) " +
+        "   , NVL(seg.lobs, 0) " +
+        "   , NVL(st.num_rows, 0) " +
+        "   , NVL(st.stale, 0) " +
+        "FROM " +
+        "   (SELECT " +
+        "       owner " +
+        "       , SUM(bytes) bytes " +
+        "       , COUNT(DISTINCT CASE WHEN segment_type LIKE 'TABLE%' THEN segment_name END) tables " +
+        "       , COUNT(DISTINCT CASE WHEN segment_type LIKE 'INDEX%' THEN segment_name END) indexes " +
+        "       , COUNT(DISTINCT CASE WHEN segment_type IN ('LOBSEGMENT', 'LOB PARTITION', 'LOB SUBPARTITION') THEN segment_name END) lobs " +
+        "    FROM " +
+        "       DBA_SEGMENTS " +
+        "    GROUP BY " +
+        "       owner) seg " +
+        "   FULL OUTER JOIN " +
+        "   (SELECT " +
+        "       owner " +
+        "       , SUM(num_rows) num_rows " +
+        "       , SUM(DECODE(stale_stats, 'YES', 1, 0)) stale " +
+        "    FROM " +
+        "       DBA_TAB_STATISTICS " +
+        "    WHERE " +
+        "       object_type = 'TABLE' " +
+        "    GROUP BY " +
+        "       owner) st " +
+        "   ON st.owner = seg.owner";
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being collected
+     */
+    public OracleSchemaSnapshot(OracleConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    @Override
+    protected Map<String, SchemaStatistics> load(Connection connection) throws SQLException {
+        Map<String, SchemaStatistics> schemas = new HashMap<String, SchemaStatistics>();
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(SQL_RETRIEVE_SCHEMA_STATISTICS);
+            statement.setFetchSize(500);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                schemas.put(resultSet.getString(1), new SchemaStatistics(resultSet.getDouble(2), resultSet.getInt(3),
+                    resultSet.getInt(4), resultSet.getInt(5), resultSet.getDouble(6), resultSet.getInt(7)));
+            }
+        } finally {
+            JDBCUtil.safeClose(statement, resultSet);
+        }
+        return Collections.unmodifiableMap(schemas);
+    }
+
+    /**
+     * The statistics of one schema at the time of the snapshot.
+     */
+    public static class SchemaStatistics {
+        /** Used for schemas without segments or table statistics. */
+        public static final SchemaStatistics NONE = new SchemaStatistics(0, 0, 0, 0, 0, 0);
+
+        private final double segmentBytes;
+        private final int tables;
+        private final int indexes;
+        private final int lobs;
+        private final double rowEstimate;
+        private final int staleStatistics;
+
+        SchemaStatistics(double segmentBytes, int tables, int indexes, int lobs, double rowEstimate,
+            int staleStatistics) {
+            this.segmentBytes = segmentBytes;
+            this.tables = tables;
+            this.indexes = indexes;
+            this.lobs = lobs;
+            this.rowEstimate = rowEstimate;
+            this.staleStatistics = staleStatistics;
+        }
+
+        public double getSegmentBytes() {
+            return this.segmentBytes;
+        }
+
+        public int getTables() {
+            return this.tables;
+        }
+
+        public int getIndexes() {
+            return this.indexes;
+        }
+
+        public int getLobs() {
+            return this.lobs;
+        }
+
+        /**
+         * @return the sum of the optimizer's row counts for the schema's tables
+         */
+        public double getRowEstimate() {
+            return this.rowEstimate;
+        }
+
+        /**
+         * @return the number of tables whose optimizer statistics are stale
+         */
+        public int getStaleStatistics() {
+            return this.staleStatistics;
+        }
+    }
+}
@@ -20,23 +20,28 @@ package org.rhq.plugins.oracle;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.rhq.core.domain.configuration.Configuration;
-import org.rhq.core.domain.configuration.PropertyList;
-import org.rhq.core.domain.configuration.PropertyMap;
-import org.rhq.core.domain.configuration.PropertySimple;
 import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.measurement.MeasurementData;
 import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementDataTrait;
 import org.rhq.core.domain.measurement.MeasurementReport;
 import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
 import org.rhq.core.pluginapi.inventory.InvalidPluginConfigurationException;
@@ -44,10 +49,9 @@ import org.rhq.core.pluginapi.inventory.ResourceContext;
 import org.rhq.core.pluginapi.measurement.MeasurementFacet;
 import org.rhq.core.pluginapi.operation.OperationFacet;
 import org.rhq.core.pluginapi.operation.OperationResult;
-import org.rhq.plugins.database.DatabaseComponent;
-import org.rhq.plugins.database.DatabaseQueryUtility;
-
-import antlr.collections.List;
+import org.rhq.core.util.jdbc.JDBCUtil;
+import org.rhq.plugins.oracle.OracleClusterSnapshot.Instance;
+import org.rhq.plugins.oracle.OracleSnapshotCache.Snapshot;
 
 /**
  * @author Greg Hinkle
@@ -60,93 +64,105 @@ import antlr.collections.List;
  * @author isaac
  *
  */
-public class OracleServerComponent implements DatabaseComponent,
+public class OracleServerComponent implements OracleDatabaseComponent,
 		MeasurementFacet, OperationFacet {
 	private static final Log LOG = LogFactory
 			.getLog(OracleServerComponent.class);
 
-	private static final String PROPERTY_SIZE_DB = "totalSize";
-
-	private static final String SQL_RETRIEVE_METRICS = 
-		"SELECT " +
-		"   name" +
-		"   , value " +
-		"FROM " +
-		"   V$SYSSTAT";
-	private static final String SQL_RETRIEVE_TRAITS = 
-		"SELECT " +
-		"   name " +
-		"   , value " +
-		"FROM " +
-		"   V$PARAMETER";
-	private static final String SQL_RETRIEVE_SIZE_DB = 
-		"SELECT " +
-		"   SUM(bytes) " +
-		"FROM " +
-		"   SYS.DBA_DATA_FILES";
-	private static final String SQL_OPERATION_OPEN_CURSORS_BY_SESSION = 
-		"SELECT " +
-		"   s.sid " +
-		"   , s.username " +
-		"   , s.serial# " +
-		"   , a.value " +
-		"  FROM " +
-		"   v$sesstat a " +
-		"   , v$statname b " +
-		"   , v$session s " +
-		" WHERE     " +
-		"   a.statistic# = b.statistic# " +
-		"   AND s.sid=a.sid " +
-		"   AND b.name = 'opened cursors current'";
-    private static final String SQL_OPERATION_OPEN_CURSORS_BY_USER_BY_MACHINE =
-    	"SELECT" + 
-        "   s.username " +
-        "   , s.machine" +
-        "   , sum(a.value) total_cur " +
-        "   , avg(a.value) avg_cur " +
-        "   , max(a.value) max_cur " +
-        "  FROM " +
-        "   v$sesstat a " +
-        "   , v$statname b " +
-        "   , v$session s " +
-        " WHERE " +
-        "   a.statistic# = b.statistic#  " +
-        "   AND s.sid=a.sid " +
-        "   AND b.name = 'opened cursors current' " +
-        " GROUP BY " +
-        "   s.username, " +
-        "   s.machine" +
-        " ORDER BY " +
-        "   1 desc";
-    private static final String SQL_OPERATION_CACHED_CURSORS_PER_SESSION =
-    	"SELECT" +
-    	"   s.username" +
-    	"   , s.sid" +
-    	"   , s.serial#" +
-    	"   , a.value" +
-    	"  FROM " +
-    	"   v$sesstat a" +
-    	"   , v$statname b" +
-    	"   , v$session s" +
-    	" WHERE " +
-    	"   a.statistic# = b.statistic#  " +
-    	"   AND s.sid=a.sid" +
-    	"   AND b.name = 'session cursor cache count'";
-    private static final String SQL_OPERATION_VIEW_SESSSION_CURSORS_CACHE = 
-    	"SELECT " +
-    	"   c.user_name" +
-    	"   , c.sid" +
-    	"   , sql.sql_text" +
-    	"  FROM " +
-    	"   v$open_cursor c" +
-    	"   , v$sql sql" +
-    	" WHERE " +
-    	"   c.sql_id=sql.sql_id" +
-    	"   AND c.sid= ?";   
+	static final String PROPERTY_ASYNC_COLLECTION = "asyncCollection";
 
+	/** Seconds to wait for the listener to accept a new connection. */
+	static final String PROPERTY_CONNECT_TIMEOUT = "connectTimeout";
 
+	/**
+	 * Only handed to generic database plugin components, which never close
+	 * what {@link #getConnection()} returns. Everything in this plugin borrows
+	 * from {@link #connectionPool} instead.
+	 */
 	private Connection connection;
 
+	private OracleConnectionPool connectionPool;
+
+	private OracleSysStatCollector sysStatCollector;
+
+	private OracleTraitCache traitCache;
+
+	private final OracleRateCalculator rateCalculator = new OracleRateCalculator();
+
+	private OracleWaitCollector waitCollector;
+
+	/** The most request sets whose plans are kept. */
+	private static final int MAX_METRIC_PLANS = 8;
+
+	/**
+	 * Serializes collection cycles, which share the V$SYSSTAT collector and
+	 * the rate calculator whatever plan they use.
+	 */
+	private final Object collectionLock = new Object();
+
+	/**
+	 * How to answer each recently requested set of metrics, keyed by
+	 * {@link #getPlanKey(Set)}; RHQ requests a different set per schedule
+	 * interval. Guarded by {@link #collectionLock}.
+	 */
+	private final Map<Integer, OracleMetricPlan> metricPlans = new LinkedHashMap<Integer, OracleMetricPlan>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<Integer, OracleMetricPlan> eldest) {
+			return size() > MAX_METRIC_PLANS;
+		}
+	};
+
+	private OracleDatabaseSizeCollector databaseSizeCollector;
+
+	private OracleCursorLeakDetector cursorLeakDetector;
+
+	private OracleTopSqlSampler topSqlSampler;
+
+	/**
+	 * Null unless active session sampling is enabled.
+	 */
+	private OracleActiveSessionSampler activeSessionSampler;
+
+	private OracleUserSessionSnapshot userSessionSnapshot;
+
+	private OracleSchemaSnapshot schemaSnapshot;
+
+	private OracleClusterSnapshot clusterSnapshot;
+
+	private OraclePdbSnapshot pdbSnapshot;
+
+	private OracleTablespaceSnapshot tablespaceSnapshot;
+
+	private OracleAvailabilityIndex userIndex;
+
+	private OracleAvailabilityIndex schemaIndex;
+
+	/**
+	 * Suspends or thins out collection while the instance is struggling.
+	 */
+	private OracleCollectionBreaker collectionBreaker;
+
+	/**
+	 * Null unless metrics are collected in the background.
+	 */
+	private CollectionSnapshot collectionSnapshot;
+
+	/**
+	 * Runs this server's background collection tasks.
+	 */
+	private ScheduledExecutorService executor;
+
+	private OracleAvailabilityProbe availabilityProbe;
+
+	/**
+	 * Runs the availability probe alone, so that collection cannot delay it.
+	 */
+	private ScheduledExecutorService availabilityExecutor;
+
 	private ResourceContext resourceContext;
 
 	/**
@@ -162,37 +178,168 @@ public class OracleServerComponent implements DatabaseComponent,
 	}
 
 	/**
-	 * 
-	 * @param report
-	 * @param metrics
-	 * @param values
+	 * Reads an optional integer property of the plugin configuration.
+	 * @param configuration the plugin configuration
+	 * @param name the property name
+	 * @param defaultValue the value to use when the property is unset or invalid
+	 * @return the property value
+	 */
+	static int getIntValue(Configuration configuration, String name,
+			int defaultValue) {
+		String value = configuration.getSimpleValue(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOG.warn("Ignoring invalid value [" + value + "] for [" + name
+					+ "], using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the plan for the requested metrics, working out a new one only
+	 * when the schedules changed or the statistic numbers were resolved again.
+	 * @param metrics the requested metrics
+	 * @return the plan
+	 * @throws SQLException if the statistic names could not be read
+	 */
+	OracleMetricPlan getMetricPlan(Set<MeasurementScheduleRequest> metrics)
+			throws SQLException {
+		synchronized (this.collectionLock) {
+			Integer key = getPlanKey(metrics);
+			OracleMetricPlan plan = this.metricPlans.get(key);
+			if ((plan == null)
+					|| !plan.matches(metrics, this.sysStatCollector
+							.getGeneration())) {
+				plan = OracleMetricPlan.build(metrics, this.sysStatCollector,
+						this.waitCollector);
+				this.metricPlans.put(key, plan);
+			}
+			return plan;
+		}
+	}
+
+	/**
+	 * @param metrics the requested metrics
+	 * @return a hash of the requests that does not depend on their order;
+	 * the plan found under it is still checked against the requests
 	 */
-	private void populateRequestedMetrics(MeasurementReport report,
-			Set<MeasurementScheduleRequest> metrics, Map<String, Double> values) {
+	private static Integer getPlanKey(Set<MeasurementScheduleRequest> metrics) {
+		int key = metrics.size();
 		for (MeasurementScheduleRequest request : metrics) {
-			if (request.getName().equals(PROPERTY_SIZE_DB)) {
-				Double val = DatabaseQueryUtility.getSingleNumericQueryValue(
-						this, SQL_RETRIEVE_SIZE_DB);
-				report.addData(new MeasurementDataNumeric(request, val));
-			} else {
-				Double value = values.get(request.getName());
-				if (value != null) {
-					report.addData(new MeasurementDataNumeric(request, value));
+			key += 31 * request.getScheduleId() + request.getName().hashCode();
+		}
+		return key;
+	}
+
+	/**
+	 * Adds the requested values to the report. Sizes and traits are answered
+	 * from memory, statistics from the values just collected into the plan,
+	 * rates and ratios from the rate calculator, wait class rates from the
+	 * wait collector, the plugin's own query cost from the pool, cluster-wide
+	 * totals from the cluster snapshot.
+	 * @param report the report to fill
+	 * @param metrics the requested metrics
+	 * @param plan the plan the statistics were collected with
+	 * @throws SQLException if the traits could not be read
+	 */
+	void populateRequestedMetrics(MeasurementReport report,
+			Set<MeasurementScheduleRequest> metrics, OracleMetricPlan plan)
+			throws SQLException {
+		double[] values = plan.getValues();
+		// looked up once per cycle, as each lookup reads the startup time from V$INSTANCE
+		Map<String, String> parameters = null;
+		Snapshot<Map<Integer, Instance>> cluster = null;
+		boolean clusterRead = false;
+		for (MeasurementScheduleRequest request : metrics) {
+			int index = plan.indexOf(request);
+			double value;
+			switch (plan.getKind(index)) {
+			case OracleMetricPlan.SIZE:
+				Double size = this.databaseSizeCollector.getValue(plan.getName(index));
+				value = (size != null) ? size : Double.NaN;
+				break;
+			case OracleMetricPlan.WAIT_TIME:
+				value = this.waitCollector.getTimeRate(plan.getSlot(index));
+				break;
+			case OracleMetricPlan.WAITS:
+				value = this.waitCollector.getWaitRate(plan.getSlot(index));
+				break;
+			case OracleMetricPlan.CURSOR:
+				// null while cursor sampling is disabled
+				Double cursors = (this.cursorLeakDetector != null) ? this.cursorLeakDetector
+						.getValue(plan.getName(index)) : null;
+				value = (cursors != null) ? cursors : Double.NaN;
+				break;
+			case OracleMetricPlan.TOP_SQL:
+				// null while top SQL sampling is disabled
+				Double topSql = (this.topSqlSampler != null) ? this.topSqlSampler
+						.getValue(plan.getName(index)) : null;
+				value = (topSql != null) ? topSql : Double.NaN;
+				break;
+			case OracleMetricPlan.CLUSTER:
+				if (!clusterRead) {
+					// null until the first background refresh completes
+					cluster = this.clusterSnapshot.get(OracleSnapshotCache
+							.getMaxAge(metrics));
+					clusterRead = true;
 				}
+				value = (cluster != null) ? OracleClusterSnapshot
+						.getClusterValue(cluster.getValue(), plan
+								.getName(index)) : Double.NaN;
+				break;
+			case OracleMetricPlan.QUERY_STATISTICS:
+				value = this.connectionPool.getQueryStatistics().getValue(
+						plan.getSlot(index));
+				break;
+			case OracleMetricPlan.TRAIT:
+				if (parameters == null) {
+					parameters = this.traitCache.getValues();
+				}
+				String trait = parameters.get(plan.getName(index));
+				if (trait != null) {
+					report.addData(new MeasurementDataTrait(request, trait));
+				}
+				continue;
+			case OracleMetricPlan.STATISTIC:
+				value = values[plan.getSlot(index)];
+				break;
+			case OracleMetricPlan.RATE:
+				value = this.rateCalculator.getRate(plan.getSlot(index));
+				break;
+			case OracleMetricPlan.RATIO:
+				value = this.rateCalculator.getRatio(plan.getSlot(index),
+						plan.getRatioStatistics(index));
+				break;
+			default:
+				if (parameters == null) {
+					parameters = this.traitCache.getValues();
+				}
+				value = getNumericParameter(parameters.get(plan.getName(index)));
+				break;
+			}
+			if (!Double.isNaN(value)) {
+				report.addData(new MeasurementDataNumeric(request, value));
 			}
 		}
 	}
 
 	/**
-	 * 
-	 * @return
+	 * @param parameter a V$PARAMETER value, or null
+	 * @return the numeric value of the parameter, or NaN
 	 */
-	private Map<String, Double> retrieveMetricValues() {
-		Map<String, Double> values = DatabaseQueryUtility
-				.getNumericQueryValueMap(this, SQL_RETRIEVE_METRICS);
-		values.putAll(DatabaseQueryUtility
-				.getNumericQueryValueMap(this, SQL_RETRIEVE_TRAITS));
-		return values;
+	private static double getNumericParameter(String parameter) {
+		if (parameter != null) {
+			try {
+				return Double.parseDouble(parameter);
+			} catch (NumberFormatException e) {
+				// not a numeric parameter
+			}
+		}
+		return Double.NaN;
 	}
 
 	/* (non-Javadoc)
@@ -201,32 +348,174 @@ public class OracleServerComponent implements DatabaseComponent,
 	public void start(ResourceContext resourceContext)
 			throws InvalidPluginConfigurationException, Exception {
 		this.resourceContext = resourceContext;
-		this.connection = buildConnection(resourceContext
-				.getPluginConfiguration());
+		start(resourceContext.getPluginConfiguration(), resourceContext
+				.getResourceKey());
+	}
+
+	/**
+	 * Starts the collectors and background tasks; package-private so that the
+	 * benchmarks can start a server without a plugin container.
+	 * @param pluginConfiguration the Oracle Server plugin configuration
+	 * @param resourceKey names the background threads
+	 * @throws SQLException if no connection can be made
+	 */
+	void start(Configuration pluginConfiguration, String resourceKey)
+			throws SQLException {
+		this.connectionPool = new OracleConnectionPool(pluginConfiguration);
+		// the plugin container does not stop a component whose start failed,
+		// so release whatever was started before rethrowing
+		boolean started = false;
+		try {
+			// fail fast on a bad configuration, before any thread is started
+			JDBCUtil.safeClose(this.connectionPool.getConnection());
+			startCollection(pluginConfiguration, resourceKey);
+			started = true;
+		} finally {
+			if (!started) {
+				stop();
+			}
+		}
+	}
+
+	private void startCollection(Configuration pluginConfiguration,
+			String resourceKey) {
+		this.collectionBreaker = new OracleCollectionBreaker(getIntValue(
+				pluginConfiguration,
+				OracleCollectionBreaker.PROPERTY_SLOW_THRESHOLD, 30),
+				getIntValue(pluginConfiguration,
+						OracleCollectionBreaker.PROPERTY_MAX_BACKOFF, 900));
+		this.sysStatCollector = new OracleSysStatCollector(this.connectionPool);
+		this.waitCollector = new OracleWaitCollector(this.connectionPool);
+		this.traitCache = new OracleTraitCache(this.connectionPool, getIntValue(
+				pluginConfiguration,
+				OracleTraitCache.PROPERTY_TTL, 3600) * 1000L);
+		this.databaseSizeCollector = new OracleDatabaseSizeCollector(this.connectionPool);
+		this.userSessionSnapshot = new OracleUserSessionSnapshot(this.connectionPool);
+		this.schemaSnapshot = new OracleSchemaSnapshot(this.connectionPool);
+		this.clusterSnapshot = new OracleClusterSnapshot(this.connectionPool);
+		this.pdbSnapshot = new OraclePdbSnapshot(this.connectionPool);
+		this.tablespaceSnapshot = new OracleTablespaceSnapshot(this.connectionPool);
+		long indexTtl = getIntValue(pluginConfiguration,
+				OracleAvailabilityIndex.PROPERTY_TTL, 30) * 1000L;
+		this.userIndex = OracleAvailabilityIndex.forUsers(this.connectionPool, indexTtl);
+		this.schemaIndex = OracleAvailabilityIndex.forSchemas(this.connectionPool, indexTtl);
+
+		this.executor = Executors.newScheduledThreadPool(3,
+				new CollectorThreadFactory(resourceKey));
+		this.executor.scheduleWithFixedDelay(unlessSuspended(this.databaseSizeCollector), 0,
+				Math.max(60, getIntValue(pluginConfiguration,
+						OracleDatabaseSizeCollector.PROPERTY_REFRESH_INTERVAL, 900)),
+				TimeUnit.SECONDS);
+		int cursorSampleInterval = getIntValue(pluginConfiguration,
+				OracleCursorLeakDetector.PROPERTY_SAMPLE_INTERVAL, 0);
+		if (cursorSampleInterval > 0) {
+			this.cursorLeakDetector = new OracleCursorLeakDetector(this.connectionPool,
+					getIntValue(pluginConfiguration,
+							OracleCursorLeakDetector.PROPERTY_HISTORY_SIZE, 10),
+					getIntValue(pluginConfiguration,
+							OracleCursorLeakDetector.PROPERTY_THRESHOLD, 80));
+			this.executor.scheduleWithFixedDelay(unlessSuspended(this.cursorLeakDetector), 0,
+					cursorSampleInterval, TimeUnit.SECONDS);
+		}
+		int topSqlSampleInterval = getIntValue(pluginConfiguration,
+				OracleTopSqlSampler.PROPERTY_SAMPLE_INTERVAL, 0);
+		if (topSqlSampleInterval > 0) {
+			this.topSqlSampler = new OracleTopSqlSampler(this.connectionPool,
+					getIntValue(pluginConfiguration,
+							OracleTopSqlSampler.PROPERTY_TOP_N, 20),
+					getIntValue(pluginConfiguration,
+							OracleTopSqlSampler.PROPERTY_MAX_TRACKED, 100000));
+			this.executor.scheduleWithFixedDelay(unlessSuspended(this.topSqlSampler), 0,
+					Math.max(30, topSqlSampleInterval), TimeUnit.SECONDS);
+		}
+		int ashSampleInterval = getIntValue(pluginConfiguration,
+				OracleActiveSessionSampler.PROPERTY_SAMPLE_INTERVAL, 0);
+		if (ashSampleInterval > 0) {
+			ashSampleInterval = Math.min(
+					OracleActiveSessionSampler.MAX_SAMPLE_INTERVAL, Math.max(
+							OracleActiveSessionSampler.MIN_SAMPLE_INTERVAL,
+							ashSampleInterval));
+			int ashBufferSize = Math.max(1, getIntValue(
+					pluginConfiguration,
+					OracleActiveSessionSampler.PROPERTY_BUFFER_SIZE, 4));
+			this.activeSessionSampler = new OracleActiveSessionSampler(
+					this.connectionPool,
+					Math.min(1024, ashBufferSize) * 1024 * 1024);
+			this.executor.scheduleWithFixedDelay(unlessSuspended(this.activeSessionSampler),
+					0, ashSampleInterval, TimeUnit.SECONDS);
+		}
+		if (Boolean.valueOf(pluginConfiguration.getSimpleValue(
+				PROPERTY_ASYNC_COLLECTION, "false"))) {
+			this.collectionSnapshot = new CollectionSnapshot();
+			this.collectionSnapshot.refreshIn(this.executor);
+			this.userSessionSnapshot.refreshIn(this.executor);
+			this.schemaSnapshot.refreshIn(this.executor);
+			this.clusterSnapshot.refreshIn(this.executor);
+			this.pdbSnapshot.refreshIn(this.executor);
+			this.tablespaceSnapshot.refreshIn(this.executor);
+		}
+		int probeInterval = Math.max(1, getIntValue(pluginConfiguration,
+				OracleAvailabilityProbe.PROPERTY_INTERVAL, 10));
+		this.availabilityProbe = new OracleAvailabilityProbe(
+				pluginConfiguration, probeInterval, getIntValue(
+						pluginConfiguration,
+						OracleAvailabilityProbe.PROPERTY_TIMEOUT, 5));
+		// the first verdict is known before the first availability check
+		this.availabilityProbe.run();
+		this.availabilityExecutor = Executors
+				.newSingleThreadScheduledExecutor(new CollectorThreadFactory(
+						resourceKey + "-availability"));
+		this.availabilityExecutor.scheduleWithFixedDelay(
+				this.availabilityProbe, probeInterval, probeInterval,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param task a background collection task
+	 * @return the task, skipping its runs while collection is suspended
+	 */
+	private Runnable unlessSuspended(final Runnable task) {
+		return new Runnable() {
+			public void run() {
+				if (!isCollectionSuspended()) {
+					task.run();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return whether collection from this instance is suspended because it
+	 * has been too slow; availability is still checked
+	 */
+	public boolean isCollectionSuspended() {
+		return this.collectionBreaker.isOpen();
 	}
 
 	/* (non-Javadoc)
 	 * @see org.rhq.core.pluginapi.inventory.ResourceComponent#stop()
 	 */
 	public void stop() {
-		if (this.connection != null) {
-			try {
-				this.connection.close();
-			} catch (SQLException e) {
-				LOG.debug("Unable to close oracle connection", e);
-			}
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+		if (this.availabilityExecutor != null) {
+			this.availabilityExecutor.shutdownNow();
 		}
+		if (this.availabilityProbe != null) {
+			this.availabilityProbe.close();
+		}
+		if (this.connectionPool != null) {
+			this.connectionPool.close();
+		}
+		removeConnection();
 	}
 
 	/* (non-Javadoc)
 	 * @see org.rhq.core.pluginapi.availability.AvailabilityFacet#getAvailability()
 	 */
 	public AvailabilityType getAvailability() {
-		if (getConnection() != null) {
-			return AvailabilityType.UP;
-		} else {
-			return AvailabilityType.DOWN;
-		}
+		return this.availabilityProbe.getAvailability();
 	}
 
 	/* (non-Javadoc)
@@ -248,10 +537,84 @@ public class OracleServerComponent implements DatabaseComponent,
 	/* (non-Javadoc)
 	 * @see org.rhq.plugins.database.DatabaseComponent#removeConnection()
 	 */
-	public void removeConnection() {
+	public synchronized void removeConnection() {
+		if (this.connection != null) {
+			try {
+				this.connection.close();
+			} catch (SQLException e) {
+				LOG.debug("Unable to close oracle connection", e);
+			}
+		}
 		this.connection = null;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.rhq.plugins.oracle.OracleDatabaseComponent#getConnectionPool()
+	 */
+	public OracleConnectionPool getConnectionPool() {
+		return this.connectionPool;
+	}
+
+	/**
+	 * @return the per-user session statistics shared by the Oracle User resources
+	 */
+	public OracleUserSessionSnapshot getUserSessionSnapshot() {
+		return this.userSessionSnapshot;
+	}
+
+	/**
+	 * @return the per-schema statistics shared by the Oracle Schemas resources
+	 */
+	public OracleSchemaSnapshot getSchemaSnapshot() {
+		return this.schemaSnapshot;
+	}
+
+	/**
+	 * @return the statistics of every instance of the database, shared by the
+	 * Oracle Instance resources and the cluster-wide totals
+	 */
+	public OracleClusterSnapshot getClusterSnapshot() {
+		return this.clusterSnapshot;
+	}
+
+	/**
+	 * @return the statistics of every pluggable database, shared by the Oracle
+	 * Pluggable Database resources
+	 */
+	public OraclePdbSnapshot getPdbSnapshot() {
+		return this.pdbSnapshot;
+	}
+
+	/**
+	 * @return the V$PARAMETER values, shared with the Oracle Detailed
+	 * Statistics traits
+	 */
+	public OracleTraitCache getTraitCache() {
+		return this.traitCache;
+	}
+
+	/**
+	 * @return the space usage of every tablespace, shared by the Oracle
+	 * Tablespace resources
+	 */
+	public OracleTablespaceSnapshot getTablespaceSnapshot() {
+		return this.tablespaceSnapshot;
+	}
+
+	/**
+	 * @return the existing users, for Oracle User availability
+	 */
+	public OracleAvailabilityIndex getUserIndex() {
+		return this.userIndex;
+	}
+
+	/**
+	 * @return the users owning tables, for Oracle Schemas availability
+	 */
+	public OracleAvailabilityIndex getSchemaIndex() {
+		return this.schemaIndex;
+	}
+
 	/**
 	 * @param configuration
 	 * @return
@@ -259,6 +622,19 @@ public class OracleServerComponent implements DatabaseComponent,
 	 */
 	public static Connection buildConnection(Configuration configuration)
 			throws SQLException {
+		return buildConnection(configuration, false);
+	}
+
+	/**
+	 * @param configuration the plugin configuration
+	 * @param boundedReads whether every read from the server, the login
+	 * included, also gives up after the connect timeout, so that an instance
+	 * accepting connections but never answering cannot hold the caller
+	 * @return a new connection
+	 * @throws SQLException if the connection could not be made
+	 */
+	static Connection buildConnection(Configuration configuration,
+			boolean boundedReads) throws SQLException {
 		String driverClass = configuration.getSimple("driverClass")
 				.getStringValue();
 		try {
@@ -283,6 +659,16 @@ public class OracleServerComponent implements DatabaseComponent,
 		if (principal.equalsIgnoreCase("SYS")) {
 			props.put("internal_logon", "sysdba");
 		}
+		int connectTimeout = getIntValue(configuration,
+				PROPERTY_CONNECT_TIMEOUT, 10);
+		if (connectTimeout > 0) {
+			props.put("oracle.net.CONNECT_TIMEOUT", String
+					.valueOf(connectTimeout * 1000L));
+			if (boundedReads) {
+				props.put("oracle.jdbc.ReadTimeout", String
+						.valueOf(connectTimeout * 1000L));
+			}
+		}
 
 		return DriverManager.getConnection(url, props);
 	}
@@ -292,9 +678,80 @@ public class OracleServerComponent implements DatabaseComponent,
 	 */
 	public void getValues(MeasurementReport report,
 			Set<MeasurementScheduleRequest> metrics) throws Exception {
-		Map<String, Double> values = retrieveMetricValues();
+		if (this.collectionSnapshot != null) {
+			this.collectionSnapshot.report(report, metrics);
+		} else {
+			collect(report, metrics);
+		}
+	}
+
+	/**
+	 * Runs one collection cycle, unless the collection breaker refuses it.
+	 * @param report the report to fill
+	 * @param metrics the requested metrics
+	 * @throws SQLException if the metrics could not be collected
+	 */
+	void collect(MeasurementReport report,
+			Set<MeasurementScheduleRequest> metrics) throws SQLException {
+		OracleQueryStatistics queryStatistics = this.connectionPool
+				.getQueryStatistics();
+		if (!this.collectionBreaker.allowCycle()) {
+			queryStatistics.recordSkippedCollection();
+			reportQueryStatistics(report, metrics);
+			return;
+		}
+		long start = System.nanoTime();
+		boolean timedOut = false;
+		try {
+			synchronized (this.collectionLock) {
+				OracleMetricPlan plan = getMetricPlan(metrics);
+				if (plan.hasQueryMetrics()) {
+					// report on the cycles up to this one
+					queryStatistics.roll();
+				}
+				this.sysStatCollector.collect(plan.getStatistics(),
+						plan.getValues());
+				this.rateCalculator.update(this.sysStatCollector
+						.getStartupTime(), System.currentTimeMillis(), plan
+						.getStatistics(), plan.getValues());
+				if (plan.hasWaitMetrics()) {
+					this.waitCollector.collect();
+				}
+				populateRequestedMetrics(report, metrics, plan);
+			}
+		} catch (SQLException e) {
+			timedOut = OracleQueryStatistics.isTimeout(e);
+			throw e;
+		} finally {
+			long nanos = System.nanoTime() - start;
+			queryStatistics.recordCollection(nanos);
+			this.collectionBreaker.recordCycle(nanos, timedOut);
+		}
+	}
 
-		populateRequestedMetrics(report, metrics, values);
+	/**
+	 * Reports the plugin's own cost, which is kept in memory, for a cycle the
+	 * collection breaker refused.
+	 */
+	private void reportQueryStatistics(MeasurementReport report,
+			Set<MeasurementScheduleRequest> metrics) {
+		OracleQueryStatistics queryStatistics = this.connectionPool
+				.getQueryStatistics();
+		boolean rolled = false;
+		for (MeasurementScheduleRequest request : metrics) {
+			int metric = OracleQueryStatistics.getMetric(request.getName());
+			if (metric < 0) {
+				continue;
+			}
+			if (!rolled) {
+				queryStatistics.roll();
+				rolled = true;
+			}
+			double value = queryStatistics.getValue(metric);
+			if (!Double.isNaN(value)) {
+				report.addData(new MeasurementDataNumeric(request, value));
+			}
+		}
 	}
 
 	/* (non-Javadoc)
@@ -302,177 +759,163 @@ public class OracleServerComponent implements DatabaseComponent,
 	 */
 	public OperationResult invokeOperation(String name, Configuration config)
 			throws InterruptedException, Exception {
-		
-        if (name.equals("listOpenCursorsBySession")) {
-            Statement stmt = null;
-            ResultSet rs = null;
-            try {
-            	String sortBy = config.getSimple("sortBy").getStringValue();
-            	if (sortBy.equalsIgnoreCase("serialNum")) {
-            		sortBy = "serial#";
-            	} else if (sortBy.equalsIgnoreCase("numCursors")) {
-            		sortBy = "value";
-            	}
-            	String sortOrder = config.getSimple("sortOrder").getStringValue();
-            	//Need to reverse the logic here because the property maps will reverse the stack
-            	if (sortOrder.equalsIgnoreCase("ASC")) {
-            		sortOrder = "DESC";
-            	} else {
-            		sortOrder = "ASC";
-            	}
-            	
-            	stmt = getConnection().createStatement();
-                rs = stmt.executeQuery(
-                		SQL_OPERATION_OPEN_CURSORS_BY_SESSION 
-                		+ " ORDER BY " 
-                		+ sortBy 
-                		+ " " 
-                		+ sortOrder
-                );
-
-                PropertyList cursorList = new PropertyList("openCursorList");
-                synchronized(this){
-	                while (rs.next()) {
-	                    PropertyMap pm = new PropertyMap("process");
-	                    pm.put(new PropertySimple("sid", rs.getInt("sid")));
-	                    pm.put(new PropertySimple("userName", rs.getString("username")));
-	                    pm.put(new PropertySimple("serialNum", rs.getString("serial#")));
-	                    pm.put(new PropertySimple("numCursors", rs.getString("value")));
-	
-	                    cursorList.add(pm);
-	                }
-                }
-                
-                OperationResult result = new OperationResult();
-                result.getComplexResults().put(cursorList);
-                
-                return result;
-            } finally {
-                if (rs != null) {
-                    rs.close();
-                }
-
-                if (stmt != null) {
-                    stmt.close();
-                }
-            }
-        } else if (name.equals("listOpenCursorsByUserByMachine")) {
-            Statement stmt = null;
-            ResultSet rs = null;
-            try {
-            	stmt = getConnection().createStatement();
-            	rs = stmt.executeQuery(SQL_OPERATION_OPEN_CURSORS_BY_USER_BY_MACHINE);
-
-            	PropertyList cursorList = new PropertyList("openCursorByUserList");
-            	while (rs.next()) {
-            		PropertyMap pm = new PropertyMap("openCursorsByUser");
-            		pm.put(new PropertySimple("userName", rs.getString("username")));
-            		pm.put(new PropertySimple("connectingServer", rs.getString("machine")));
-            		pm.put(new PropertySimple("numCursors", rs.getString("total_cur")));
-            		pm.put(new PropertySimple("avgCursors", rs.getString("avg_cur")));
-            		pm.put(new PropertySimple("maxCursors", rs.getString("max_cur")));
-
-            		cursorList.add(pm);
-            	}
-
-            	OperationResult result = new OperationResult();
-            	result.getComplexResults().put(cursorList);
-            	return result;
-            } finally {
-            	if (rs != null) {
-            		rs.close();
-            	}
-
-            	if (stmt != null) {
-            		stmt.close();
-            	}
-            }
-        } else if(name.equals("listCachedCursorsBySession")) {
-            Statement stmt = null;
-            ResultSet rs = null;
-            try {
-            	String sortBy = config.getSimple("sortBy").getStringValue();
-            	if (sortBy.equalsIgnoreCase("serialNum")) {
-            		sortBy = "serial#";
-            	} else if (sortBy.equalsIgnoreCase("numCursors")) {
-            		sortBy = "value";
-            	}
-            	String sortOrder = config.getSimple("sortOrder").getStringValue();
-            	//Need to reverse the logic here because the property maps will reverse the stack
-            	if (sortOrder.equalsIgnoreCase("ASC")) {
-            		sortOrder = "DESC";
-            	} else {
-            		sortOrder = "ASC";
-            	}
-            	
-            	stmt = getConnection().createStatement();
-                rs = stmt.executeQuery(
-                		SQL_OPERATION_CACHED_CURSORS_PER_SESSION 
-                		+ " ORDER BY " 
-                		+ sortBy 
-                		+ " " 
-                		+ sortOrder
-                );
-
-            	PropertyList cursorList = new PropertyList("cachedCursorByUserList");
-            	synchronized(this){
-	            	while (rs.next()) {
-	            		PropertyMap pm = new PropertyMap("cachedCursorsByUser");
-	                    pm.put(new PropertySimple("userName", rs.getString("username")));
-	                    pm.put(new PropertySimple("sid", rs.getInt("sid")));
-	                    pm.put(new PropertySimple("serialNum", rs.getString("serial#")));
-	                    pm.put(new PropertySimple("numCursors", rs.getString("value")));
-	
-	            		cursorList.add(pm);
-	            	}
-            	}
-
-            	OperationResult result = new OperationResult();
-            	result.getComplexResults().put(cursorList);
-            	return result;
-            } finally {
-            	if (rs != null) {
-            		rs.close();
-            	}
-
-            	if (stmt != null) {
-            		stmt.close();
-            	}
-            }
-        } else if (name.equals("viewSessionCursorsCache")) {
-        	   PreparedStatement stmt = null;
-               ResultSet rs = null;
-               try {
-            	String sid = config.getSimple("sid").getStringValue();   
-               	stmt = getConnection().prepareStatement(SQL_OPERATION_VIEW_SESSSION_CURSORS_CACHE);
-               	stmt.setString(1,sid);
-               	rs = stmt.executeQuery();
-               	
-               	PropertyList cursorList = new PropertyList("sessionCursorCacheList");
-               	while (rs.next()) {
-               	   PropertyMap pm = new PropertyMap("cachedCursorsBySession");
-                   pm.put(new PropertySimple("userName", rs.getString("user_name")));
-                   pm.put(new PropertySimple("sid", rs.getInt("sid")));
-                   pm.put(new PropertySimple("sqlText", rs.getString("sql_text")));
-
-               	   cursorList.add(pm);
-               	}
-
-               	OperationResult result = new OperationResult();
-               	result.getComplexResults().put(cursorList);
-             	return result;
-               } finally {
-               	if (rs != null) {
-               		rs.close();
-               	}
-
-               	if (stmt != null) {
-               		stmt.close();
-               	}
-               }
-        } else {
-            throw new UnsupportedOperationException("Operation [" + name + "] is not supported yet.");
-        }
-	}
-
-}
\ No newline at end of file
+		if (OracleWaitCollector.OPERATION_LIST_TOP_WAIT_EVENTS.equals(name)) {
+			return this.waitCollector.listTopWaitEvents(config);
+		}
+		if (OracleTopSqlSampler.OPERATION_LIST_TOP_SQL.equals(name)) {
+			if (this.topSqlSampler == null) {
+				throw new IllegalStateException(
+						"Top SQL sampling is disabled; set ["
+								+ OracleTopSqlSampler.PROPERTY_SAMPLE_INTERVAL
+								+ "] to enable it");
+			}
+			return this.topSqlSampler.listTopSql(config);
+		}
+		if (OracleActiveSessionSampler.OPERATION_LIST_TOP_ACTIVITY.equals(name)) {
+			if (this.activeSessionSampler == null) {
+				throw new IllegalStateException(
+						"Active session sampling is disabled; set ["
+								+ OracleActiveSessionSampler.PROPERTY_SAMPLE_INTERVAL
+								+ "] to enable it");
+			}
+			return this.activeSessionSampler.listTopActivity(config);
+		}
+		if (OracleCursorLeakDetector.OPERATION_LIST_SUSPECTS.equals(name)) {
+			if (this.cursorLeakDetector == null) {
+				throw new IllegalStateException(
+						"Cursor sampling is disabled; set ["
+								+ OracleCursorLeakDetector.PROPERTY_SAMPLE_INTERVAL
+								+ "] to enable it");
+			}
+			return this.cursorLeakDetector.listSuspects(config);
+		}
+		OracleDiagnosticOperation operation = OracleDiagnosticOperation
+				.forName(name);
+		if (operation == null) {
+			throw new UnsupportedOperationException("Operation [" + name
+					+ "] is not supported yet.");
+		}
+		return operation.invoke(this.connectionPool, config);
+	}
+
+	/**
+	 * The server's metrics, collected in the background for every metric
+	 * requested so far. Reports are answered from the latest collection with
+	 * the time it was made, so they never wait on the database, and each value
+	 * is reported once.
+	 */
+	private class CollectionSnapshot extends
+			OracleSnapshotCache<Map<String, MeasurementData>> {
+
+		/** Every metric requested so far, by name; guarded by this. */
+		private final Map<String, MeasurementScheduleRequest> requests = new HashMap<String, MeasurementScheduleRequest>();
+
+		private volatile Set<MeasurementScheduleRequest> requested = Collections
+				.emptySet();
+
+		/** The collection time last reported, by schedule id. */
+		private final Map<Integer, Long> reported = new ConcurrentHashMap<Integer, Long>();
+
+		CollectionSnapshot() {
+			super(connectionPool);
+		}
+
+		void report(MeasurementReport report,
+				Set<MeasurementScheduleRequest> metrics) throws SQLException {
+			request(metrics);
+			Snapshot<Map<String, MeasurementData>> snapshot = get(getMaxAge(metrics));
+			if (snapshot == null) {
+				// the first collection has not completed yet
+				return;
+			}
+			for (MeasurementScheduleRequest request : metrics) {
+				MeasurementData data = snapshot.getValue().get(
+						request.getName());
+				if (data == null) {
+					continue;
+				}
+				Long last = this.reported.put(request.getScheduleId(), data
+						.getTimestamp());
+				if ((last != null) && (last >= data.getTimestamp())) {
+					continue;
+				}
+				if (data instanceof MeasurementDataTrait) {
+					report.addData(new MeasurementDataTrait(
+							data.getTimestamp(), request,
+							((MeasurementDataTrait) data).getValue()));
+				} else {
+					report.addData(new MeasurementDataNumeric(data
+							.getTimestamp(), request,
+							((MeasurementDataNumeric) data).getValue()));
+				}
+			}
+		}
+
+		private synchronized void request(
+				Set<MeasurementScheduleRequest> metrics) {
+			boolean added = false;
+			for (MeasurementScheduleRequest request : metrics) {
+				if (!this.requests.containsKey(request.getName())) {
+					this.requests.put(request.getName(), request);
+					added = true;
+				}
+			}
+			if (added) {
+				this.requested = new HashSet<MeasurementScheduleRequest>(
+						this.requests.values());
+			}
+		}
+
+		/**
+		 * Collects every requested metric. Values the collection did not
+		 * produce, say because the breaker refused it, are kept from the
+		 * previous snapshot with their own collection time.
+		 */
+		@Override
+		protected Map<String, MeasurementData> load() throws SQLException {
+			MeasurementReport collected = new MeasurementReport();
+			collect(collected, this.requested);
+			Snapshot<Map<String, MeasurementData>> previous = getLatest();
+			Map<String, MeasurementData> values = (previous != null) ? new HashMap<String, MeasurementData>(
+					previous.getValue())
+					: new HashMap<String, MeasurementData>();
+			for (MeasurementDataNumeric data : collected.getNumericData()) {
+				values.put(data.getName(), data);
+			}
+			for (MeasurementDataTrait data : collected.getTraitData()) {
+				values.put(data.getName(), data);
+			}
+			return Collections.unmodifiableMap(values);
+		}
+
+		/**
+		 * Not used: the collectors borrow their own connections.
+		 */
+		@Override
+		protected Map<String, MeasurementData> load(Connection connection)
+				throws SQLException {
+			return load();
+		}
+	}
+
+	/**
+	 * Names background threads after the server they collect for, and keeps
+	 * them from holding up an agent shutdown.
+	 */
+	private static class CollectorThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		CollectorThreadFactory(String resourceKey) {
+			this.prefix = "OracleServer-" + resourceKey + "-";
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, this.prefix
+					+ this.count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
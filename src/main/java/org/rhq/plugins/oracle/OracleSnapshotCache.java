@@ -0,0 +1,225 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Holds the result of one server-wide query that many child resources read
+ * during the same collection cycle. The first reader whose snapshot is too old
+ * reloads it; concurrent readers wait for that load instead of repeating it.
+ * <p>
+ * When {@link #refreshIn(Executor) refreshed in the background}, readers never
+ * wait: a reader whose snapshot is too old gets it anyway and starts a reload
+ * on the executor, unless one is already running. Readers then get the same
+ * snapshot more than once and use {@link #markReported} to report each of its
+ * values once.
+ *
+ * @param <T> the type of the loaded data, which must not be modified once loaded
+ */
+public abstract class OracleSnapshotCache<T> {
+    private static final Log LOG = LogFactory.getLog(OracleSnapshotCache.class);
+
+    private final OracleConnectionPool connectionPool;
+
+    /** Null unless snapshots are loaded in the background. */
+    private volatile Executor refresher;
+
+    /** Guarded by this. */
+    private Snapshot<T> snapshot;
+    private boolean refreshing;
+
+    /** The snapshot time last reported, by schedule id. */
+    private final Map<Integer, Long> reported = new ConcurrentHashMap<Integer, Long>();
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being collected
+     */
+    protected OracleSnapshotCache(OracleConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Loads snapshots on the given executor from now on, one at a time.
+     * @param refresher a bounded executor
+     */
+    public void refreshIn(Executor refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * @param maxAge the oldest snapshot, in milliseconds, the caller accepts
+     * @return a snapshot taken at most <code>maxAge</code> milliseconds ago; when
+     * refreshed in the background, the latest snapshot whatever its age, or null
+     * before the first one is loaded
+     * @throws SQLException if a new snapshot was needed and could not be loaded
+     */
+    public synchronized Snapshot<T> get(long maxAge) throws SQLException {
+        long now = System.currentTimeMillis();
+        if ((this.snapshot == null) || (now - this.snapshot.getTimestamp() >= maxAge)) {
+            if (this.refresher != null) {
+                refreshInBackground();
+            } else {
+                this.snapshot = new Snapshot<T>(load(), now);
+            }
+        }
+        return this.snapshot;
+    }
+
+    /**
+     * Never loads on the calling thread, for readers such as availability
+     * checks that must not run the query themselves. When refreshed in the
+     * background, a snapshot older than <code>maxAge</code> still starts a
+     * reload, as with {@link #get(long)}.
+     * @param maxAge the snapshot age, in milliseconds, from which a background reload starts
+     * @return the latest snapshot whatever its age, or null if none has been loaded
+     */
+    public synchronized Snapshot<T> peek(long maxAge) {
+        if ((this.refresher != null)
+            && ((this.snapshot == null) || (System.currentTimeMillis() - this.snapshot.getTimestamp() >= maxAge))) {
+            refreshInBackground();
+        }
+        return this.snapshot;
+    }
+
+    /**
+     * Records that a value of the snapshot is reported for a schedule. Schedule
+     * ids are unique across resources, so children sharing this cache may all
+     * use it.
+     * @param request the schedule the value is reported for
+     * @param snapshot the snapshot the value comes from
+     * @return false if this snapshot, or a newer one, was already reported for
+     * the schedule
+     */
+    public boolean markReported(MeasurementScheduleRequest request, Snapshot<T> snapshot) {
+        Long last = this.reported.put(request.getScheduleId(), snapshot.getTimestamp());
+        return (last == null) || (last < snapshot.getTimestamp());
+    }
+
+    /**
+     * @return the latest snapshot, or null if none has been loaded
+     */
+    protected synchronized Snapshot<T> getLatest() {
+        return this.snapshot;
+    }
+
+    private void refreshInBackground() {
+        if (this.refreshing) {
+            return;
+        }
+        this.refreshing = true;
+        try {
+            this.refresher.execute(new Runnable() {
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    T value = null;
+                    try {
+                        value = load();
+                    } catch (SQLException e) {
+                        LOG.info("Unable to refresh Oracle snapshot", e);
+                    } catch (RuntimeException e) {
+                        // let the next reader start another refresh
+                        LOG.warn("Unable to refresh Oracle snapshot", e);
+                    } finally {
+                        synchronized (OracleSnapshotCache.this) {
+                            if (value != null) {
+                                snapshot = new Snapshot<T>(value, start);
+                            }
+                            refreshing = false;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is stopping
+            this.refreshing = false;
+        }
+    }
+
+    /**
+     * Half the shortest requested interval: long enough for every resource
+     * collected in the same cycle to share one snapshot, short enough for the
+     * next cycle to see a new one.
+     * @param metrics the requested metrics
+     * @return the maximum snapshot age, in milliseconds, for these requests
+     */
+    public static long getMaxAge(Set<MeasurementScheduleRequest> metrics) {
+        long shortestInterval = Long.MAX_VALUE;
+        for (MeasurementScheduleRequest request : metrics) {
+            shortestInterval = Math.min(shortestInterval, request.getInterval());
+        }
+        return shortestInterval / 2;
+    }
+
+    /**
+     * Loads new data, by default with a pooled connection.
+     * @return the freshly loaded data
+     * @throws SQLException if the data could not be loaded
+     */
+    protected T load() throws SQLException {
+        Connection connection = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            return load(connection);
+        } finally {
+            JDBCUtil.safeClose(connection);
+        }
+    }
+
+    /**
+     * @param connection a pooled connection, closed by the caller
+     * @return the freshly loaded data
+     * @throws SQLException if the data could not be loaded
+     */
+    protected abstract T load(Connection connection) throws SQLException;
+
+    /**
+     * Loaded data and the time the load started.
+     *
+     * @param <T> the type of the loaded data
+     */
+    public static class Snapshot<T> {
+        private final T value;
+        private final long timestamp;
+
+        Snapshot(T value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        public T getValue() {
+            return this.value;
+        }
+
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.rhq.core.domain.configuration.PropertyList;
+import org.rhq.core.domain.configuration.PropertyMap;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pluginapi.operation.OperationResult;
+
+/**
+ * Writes the rows of an ad-hoc query into an operation result as they are
+ * fetched, stopping once either the row limit or the output size limit is hit.
+ */
+public abstract class OracleSqlResultWriter {
+
+    /** Upper bound on the characters written into one operation result. */
+    static final int MAX_OUTPUT_LENGTH = 1024 * 1024;
+
+    /** java.sql.Types.NCLOB, which is missing from Java 5. */
+    private static final int NCLOB = 2011;
+
+    /** oracle.jdbc.OracleTypes.BINARY_FLOAT and BINARY_DOUBLE. */
+    private static final int BINARY_FLOAT = 100;
+    private static final int BINARY_DOUBLE = 101;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final int maxRows;
+    private int rowCount;
+    private int outputLength;
+    private boolean truncated;
+    private int[] columnTypes;
+
+    protected OracleSqlResultWriter(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * @param format html, csv or list
+     * @param maxRows the most rows to write, 0 for no limit other than the output size
+     * @return a writer for the format
+     */
+    public static OracleSqlResultWriter forFormat(String format, int maxRows) {
+        if ("csv".equalsIgnoreCase(format)) {
+            return new CsvWriter(maxRows);
+        } else if ("list".equalsIgnoreCase(format)) {
+            return new ListWriter(maxRows);
+        }
+        return new HtmlWriter(maxRows);
+    }
+
+    /**
+     * Consumes the result set until it is exhausted or a limit is hit.
+     * @param rs an open result set, closed by the caller
+     * @param result the operation result receiving the output
+     * @throws SQLException if reading the result set fails
+     */
+    public void write(ResultSet rs, OperationResult result) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        int columnCount = md.getColumnCount();
+        String[] columns = new String[columnCount];
+        this.columnTypes = new int[columnCount];
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < columnCount; i++) {
+            // expressions and joins repeat names; keys must be unique in a row map
+            String name = md.getColumnName(i + 1);
+            String unique = name;
+            for (int n = 2; !names.add(unique); n++) {
+                unique = name + "_" + n;
+            }
+            columns[i] = unique;
+            this.columnTypes[i] = md.getColumnType(i + 1);
+        }
+        writeHeader(md, columns);
+
+        while (rs.next()) {
+            if (((this.maxRows > 0) && (this.rowCount == this.maxRows)) || (this.outputLength > MAX_OUTPUT_LENGTH)) {
+                this.truncated = true;
+                break;
+            }
+            this.rowCount++;
+            writeRow(rs, columns);
+        }
+
+        finish(result);
+        result.getComplexResults().put(new PropertySimple("result", "Query returned " + this.rowCount + " rows"
+            + (this.truncated ? " (truncated)" : "")));
+        result.getComplexResults().put(new PropertySimple("rowCount", this.rowCount));
+        result.getComplexResults().put(new PropertySimple("truncated", this.truncated));
+    }
+
+    /**
+     * Reads a column as text. LOBs are read only up to the output still
+     * allowed, BLOBs as hexadecimal, and truncate the output when cut short.
+     * @param rs the result set, on the current row
+     * @param column the column index, from 1
+     * @return the value as text, or null
+     * @throws SQLException if reading the column fails
+     */
+    protected String getString(ResultSet rs, int column) throws SQLException {
+        int type = this.columnTypes[column - 1];
+        long remaining = Math.max(0, MAX_OUTPUT_LENGTH - this.outputLength);
+        if ((type == Types.CLOB) || (type == NCLOB)) {
+            Clob clob = rs.getClob(column);
+            if (clob == null) {
+                return null;
+            }
+            long length = clob.length();
+            if (length > remaining) {
+                this.truncated = true;
+            }
+            return (length == 0) ? "" : clob.getSubString(1, (int) Math.min(length, remaining));
+        } else if (type == Types.BLOB) {
+            Blob blob = rs.getBlob(column);
+            if (blob == null) {
+                return null;
+            }
+            long length = blob.length();
+            if (length * 2 > remaining) {
+                this.truncated = true;
+            }
+            byte[] bytes = (length == 0) ? new byte[0] : blob.getBytes(1, (int) Math.min(length, remaining / 2));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+            }
+            return hex.toString();
+        }
+        return rs.getString(column);
+    }
+
+    /**
+     * Tells whether a column holds numbers, from its metadata type, so that
+     * the column can be read once as the right kind of value. Streamed types
+     * such as LONG and LONG RAW can only be read once per row.
+     * @param column the column index, from 1
+     * @return true for numeric columns
+     */
+    protected boolean isNumeric(int column) {
+        switch (this.columnTypes[column - 1]) {
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.SMALLINT:
+        case Types.TINYINT:
+        case Types.FLOAT:
+        case Types.REAL:
+        case Types.DOUBLE:
+        case BINARY_FLOAT:
+        case BINARY_DOUBLE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Counts characters against {@link #MAX_OUTPUT_LENGTH}.
+     * @param length the number of characters just written
+     */
+    protected void written(int length) {
+        this.outputLength += length;
+    }
+
+    protected abstract void writeHeader(ResultSetMetaData md, String[] columns) throws SQLException;
+
+    protected abstract void writeRow(ResultSet rs, String[] columns) throws SQLException;
+
+    protected abstract void finish(OperationResult result);
+
+    private static class HtmlWriter extends OracleSqlResultWriter {
+        private final StringBuilder buf = new StringBuilder();
+
+        HtmlWriter(int maxRows) {
+            super(maxRows);
+        }
+
+        @Override
+        protected void writeHeader(ResultSetMetaData md, String[] columns) throws SQLException {
+            buf.append("<table>");
+            buf.append("<th>");
+            for (int i = 1; i <= columns.length; i++) {
+                buf.append("<td>");
+                escape(columns[i - 1] + " (" + md.getColumnTypeName(i) + ")");
+                buf.append("</td>");
+            }
+            buf.append("</th>");
+        }
+
+        @Override
+        protected void writeRow(ResultSet rs, String[] columns) throws SQLException {
+            int start = buf.length();
+            buf.append("<tr>");
+            for (int i = 1; i <= columns.length; i++) {
+                buf.append("<td>");
+                escape(getString(rs, i));
+                buf.append("</td>");
+            }
+            buf.append("</tr>");
+            written(buf.length() - start);
+        }
+
+        @Override
+        protected void finish(OperationResult result) {
+            buf.append("</table>");
+            result.getComplexResults().put(new PropertySimple("contents", buf.toString()));
+        }
+
+        private void escape(String value) {
+            if (value == null) {
+                buf.append("null");
+                return;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '<') {
+                    buf.append("&lt;");
+                } else if (c == '>') {
+                    buf.append("&gt;");
+                } else if (c == '&') {
+                    buf.append("&amp;");
+                } else {
+                    buf.append(c);
+                }
+            }
+        }
+    }
+
+    private static class CsvWriter extends OracleSqlResultWriter {
+        private final StringBuilder buf = new StringBuilder();
+
+        CsvWriter(int maxRows) {
+            super(maxRows);
+        }
+
+        @Override
+        protected void writeHeader(ResultSetMetaData md, String[] columns) {
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                quote(columns[i]);
+            }
+            buf.append('\n');
+        }
+
+        @Override
+        protected void writeRow(ResultSet rs, String[] columns) throws SQLException {
+            int start = buf.length();
+            for (int i = 1; i <= columns.length; i++) {
+                if (i > 1) {
+                    buf.append(',');
+                }
+                String value = getString(rs, i);
+                if (value != null) {
+                    quote(value);
+                }
+            }
+            buf.append('\n');
+            written(buf.length() - start);
+        }
+
+        @Override
+        protected void finish(OperationResult result) {
+            result.getComplexResults().put(new PropertySimple("contents", buf.toString()));
+        }
+
+        private void quote(String value) {
+            boolean quoted = false;
+            for (int i = 0; i < value.length() && !quoted; i++) {
+                char c = value.charAt(i);
+                quoted = (c == ',') || (c == '"') || (c == '\n') || (c == '\r');
+            }
+            if (!quoted) {
+                buf.append(value);
+                return;
+            }
+            buf.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    buf.append('"');
+                }
+                buf.append(c);
+            }
+            buf.append('"');
+        }
+    }
+
+    private static class ListWriter extends OracleSqlResultWriter {
+        private final PropertyList rows = new PropertyList("rows");
+
+        ListWriter(int maxRows) {
+            super(maxRows);
+        }
+
+        @Override
+        protected void writeHeader(ResultSetMetaData md, String[] columns) {
+        }
+
+        @Override
+        protected void writeRow(ResultSet rs, String[] columns) throws SQLException {
+            PropertyMap row = new PropertyMap("row");
+            int length = 0;
+            for (int i = 1; i <= columns.length; i++) {
+                Object value;
+                if (isNumeric(i)) {
+                    value = rs.getObject(i);
+                    length += (value != null) ? 8 : 0;
+                } else {
+                    value = getString(rs, i);
+                    length += (value != null) ? ((String) value).length() : 0;
+                }
+                row.put(new PropertySimple(columns[i - 1], value));
+            }
+            rows.add(row);
+            written(length);
+        }
+
+        @Override
+        protected void finish(OperationResult result) {
+            result.getComplexResults().put(rows);
+        }
+    }
+}
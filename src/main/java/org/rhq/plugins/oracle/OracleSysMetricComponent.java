@@ -0,0 +1,279 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementDataTrait;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.pluginapi.measurement.MeasurementFacet;
+import org.rhq.core.util.jdbc.JDBCUtil;
+import org.rhq.plugins.database.AbstractDatabaseComponent;
+
+/**
+ * Reads only the scheduled rows of V$SYSMETRIC, from the group whose interval
+ * suits the schedule: the 15 second group for schedules shorter than a minute,
+ * when it has the metric, and the 60 second group otherwise.
+ * <p>
+ * Metric names are resolved to their <code>metric_id</code> once, and again
+ * only when a resolved id stops returning a row. Oracle only recomputes a
+ * group when its interval ends, so until the next <code>end_time</code> is
+ * due the group is not read again, and a value is reported once per
+ * <code>end_time</code>, with the time it was computed.
+ * <p>
+ * V$PARAMETER traits are answered from the Oracle Server's trait cache.
+ */
+public class OracleSysMetricComponent extends AbstractDatabaseComponent<OracleServerComponent> implements
+    MeasurementFacet {
+
+    /** System Metrics Long Duration, computed every 60 seconds. */
+    static final int GROUP_LONG = 2;
+
+    /** System Metrics Short Duration, computed every 15 seconds; a subset of the long group. */
+    static final int GROUP_SHORT = 3;
+
+    /** Schedules at least this long, in milliseconds, read the long group. */
+    private static final long LONG_INTERVAL = 60 * 1000L;
+
+    private static final String SQL_RESOLVE_METRICS =
+        "SELECT " +
+        "   group_id " +
+        "   , metric_id " +
+        "   , metric_name " +
+        "FROM " +
+        "   V$METRICNAME " +
+        "WHERE " +
+        "   group_id IN (" + GROUP_LONG + ", " + GROUP_SHORT + ")";
+
+    /**
+     * The age of the interval's end, in seconds of database time, lets the
+     * next end be predicted without comparing clocks; the end itself, in
+     * seconds since the epoch, identifies the interval.
+     */
+    private static final String SQL_RETRIEVE_METRICS =
+        "SELECT " +
+        "   metric_id " +
+        "   , value " +
+        "   , (SYSDATE - end_time) * 86400 " +
+        "   , intsize_csec " +
+        "   , ROUND((end_time - TO_DATE('19700101', 'YYYYMMDD')) * 86400) " +
+        "FROM " +
+        "   V$SYSMETRIC " +
+        "WHERE " +
+        "   group_id = ? " +
+        "   AND ";
+
+    /** Guarded by this; the metric ids of each group by name, null until resolved. */
+    private Map<Integer, Map<String, Integer>> metricIds;
+
+    /** Guarded by this; the last fetch of each group. */
+    private final Map<Integer, Fetch> fetches = new HashMap<Integer, Fetch>();
+
+    /** Guarded by this; the <code>end_time</code> last reported for each schedule id. */
+    private final Map<Integer, Long> reportedEnds = new HashMap<Integer, Long>();
+
+    public AvailabilityType getAvailability() {
+        return this.resourceContext.getParentResourceComponent().getAvailability();
+    }
+
+    public synchronized void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> metrics)
+        throws Exception {
+        OracleServerComponent server = this.resourceContext.getParentResourceComponent();
+        if (server.isCollectionSuspended()) {
+            return;
+        }
+
+        Map<Integer, List<MeasurementScheduleRequest>> requestsByGroup =
+            new HashMap<Integer, List<MeasurementScheduleRequest>>();
+        Map<MeasurementScheduleRequest, Integer> requestIds = new HashMap<MeasurementScheduleRequest, Integer>();
+        Map<String, String> parameters = null;
+        Map<Integer, Map<String, Integer>> ids = getMetricIds();
+        for (MeasurementScheduleRequest request : metrics) {
+            String name = request.getName();
+            int group = GROUP_LONG;
+            if ((request.getInterval() < LONG_INTERVAL) && ids.get(GROUP_SHORT).containsKey(name)) {
+                group = GROUP_SHORT;
+            }
+            Integer id = ids.get(group).get(name);
+            if (id != null) {
+                List<MeasurementScheduleRequest> requests = requestsByGroup.get(group);
+                if (requests == null) {
+                    requests = new ArrayList<MeasurementScheduleRequest>();
+                    requestsByGroup.put(group, requests);
+                }
+                requests.add(request);
+                requestIds.put(request, id);
+                continue;
+            }
+
+            if (parameters == null) {
+                parameters = server.getTraitCache().getValues();
+            }
+            String trait = parameters.get(name);
+            if (trait != null) {
+                report.addData(new MeasurementDataTrait(request, trait));
+            }
+        }
+
+        for (Map.Entry<Integer, List<MeasurementScheduleRequest>> entry : requestsByGroup.entrySet()) {
+            List<MeasurementScheduleRequest> requests = entry.getValue();
+            int[] wanted = new int[requests.size()];
+            for (int i = 0; i < wanted.length; i++) {
+                wanted[i] = requestIds.get(requests.get(i));
+            }
+            Fetch fetch = this.fetches.get(entry.getKey());
+            if ((fetch == null) || !fetch.answers(wanted)) {
+                fetch = fetch(server.getConnectionPool(), entry.getKey(), wanted);
+                this.fetches.put(entry.getKey(), fetch);
+                if (fetch.lacksWanted) {
+                    // the metric was dropped or renamed, e.g. by an upgrade
+                    this.metricIds = null;
+                }
+            }
+            for (MeasurementScheduleRequest request : requests) {
+                Double value = fetch.values.get(requestIds.get(request));
+                Long reportedEnd = this.reportedEnds.get(request.getScheduleId());
+                if ((value != null) && ((reportedEnd == null) || (reportedEnd < fetch.end))) {
+                    report.addData(new MeasurementDataNumeric(fetch.timestamp, request, value));
+                    this.reportedEnds.put(request.getScheduleId(), fetch.end);
+                }
+            }
+        }
+    }
+
+    private Map<Integer, Map<String, Integer>> getMetricIds() throws SQLException {
+        if (this.metricIds != null) {
+            return this.metricIds;
+        }
+
+        Map<Integer, Map<String, Integer>> ids = new HashMap<Integer, Map<String, Integer>>();
+        ids.put(GROUP_LONG, new HashMap<String, Integer>());
+        ids.put(GROUP_SHORT, new HashMap<String, Integer>());
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.resourceContext.getParentResourceComponent().getConnectionPool().getConnection();
+            statement = connection.prepareStatement(SQL_RESOLVE_METRICS);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                ids.get(resultSet.getInt(1)).put(resultSet.getString(3), resultSet.getInt(2));
+            }
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+        this.metricIds = ids;
+        return ids;
+    }
+
+    private static Fetch fetch(OracleConnectionPool connectionPool, int group, int[] wanted) throws SQLException {
+        Fetch fetch = new Fetch();
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = connectionPool.getConnection();
+            int bindSize = OracleSysStatCollector.getBindSize(wanted.length);
+            statement = connection.prepareStatement(SQL_RETRIEVE_METRICS
+                + OracleSysStatCollector.getInList("metric_id", bindSize));
+            int index = 1;
+            statement.setInt(index++, group);
+            for (int id : wanted) {
+                statement.setInt(index++, id);
+            }
+            while (index <= bindSize + 1) {
+                statement.setInt(index++, -1);
+            }
+
+            resultSet = statement.executeQuery();
+            long now = System.currentTimeMillis();
+            // without rows, fetch again next time
+            fetch.nextEnd = now;
+            fetch.timestamp = now;
+            fetch.end = Long.MIN_VALUE;
+            while (resultSet.next()) {
+                fetch.values.put(resultSet.getInt(1), resultSet.getDouble(2));
+                // rows read across a recomputation end at different times; keep the latest
+                long end = resultSet.getLong(5);
+                if (end > fetch.end) {
+                    fetch.end = end;
+                    fetch.timestamp = now - (long) (resultSet.getDouble(3) * 1000);
+                    fetch.nextEnd = fetch.timestamp + resultSet.getLong(4) * 10;
+                }
+            }
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+        for (int id : wanted) {
+            fetch.ids.add(id);
+            if (!fetch.values.isEmpty() && !fetch.values.containsKey(id)) {
+                fetch.lacksWanted = true;
+            }
+        }
+        return fetch;
+    }
+
+    /**
+     * The values of one group read at the end of one of its intervals.
+     */
+    private static class Fetch {
+        private final Set<Integer> ids = new HashSet<Integer>();
+        private final Map<Integer, Double> values = new HashMap<Integer, Double>();
+
+        /** When the latest interval read ended, in local time. */
+        private long timestamp;
+
+        /** When the latest interval read ended, in seconds of database time since the epoch. */
+        private long end;
+
+        /** Whether the group had rows, but not for every wanted metric id. */
+        private boolean lacksWanted;
+
+        /** When the next interval ends, in local time. */
+        private long nextEnd;
+
+        /**
+         * @param wanted metric ids
+         * @return true if the fetch read all the metrics and the group has not been recomputed since
+         */
+        boolean answers(int[] wanted) {
+            if (System.currentTimeMillis() >= this.nextEnd) {
+                return false;
+            }
+            for (int id : wanted) {
+                if (!this.ids.contains(id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Reads only the requested rows of V$SYSSTAT.
+ * <p>
+ * Statistic names are resolved to their <code>statistic#</code> once, after
+ * which every collection is a single query binding the wanted numbers and
+ * writing the values into a caller-owned array indexed by those numbers.
+ */
+public class OracleSysStatCollector {
+
+    private static final String SQL_RESOLVE_STATISTICS =
+        "SELECT " +
+        "   statistic# " +
+        "   , name " +
+        "FROM " +
+        "   V$STATNAME";
+
+    /**
+     * The instance startup time rides along as statistic# -1, in seconds since
+     * the epoch, so restarts are noticed without another round trip.
+     */
+    private static final String SQL_RETRIEVE_STATISTICS =
+        "SELECT " +
+        "   -1 " +
+        "   , (startup_time - TO_DATE('19700101', 'YYYYMMDD')) * 86400 " +
+        "FROM " +
+        "   V$INSTANCE " +
+        "UNION ALL " +
+        "SELECT " +
+        "   statistic# " +
+        "   , value " +
+        "FROM " +
+        "   V$SYSSTAT " +
+        "WHERE " +
+        "   ";
+    private static final int STARTUP_TIME = -1;
+
+    /**
+     * Smallest IN list we bind; lists grow in powers of two from here so the
+     * pool's statement cache sees only a handful of distinct statements.
+     */
+    private static final int MIN_BIND_SIZE = 8;
+
+    /**
+     * Largest single IN list; Oracle refuses lists of more than 1000
+     * expressions (ORA-01795), so longer lists are split and ORed together.
+     */
+    static final int MAX_IN_LIST_SIZE = 512;
+
+    private final OracleConnectionPool connectionPool;
+
+    private volatile Map<String, Integer> statisticNumbers;
+
+    private volatile int statisticLimit;
+
+    private volatile int generation;
+
+    private volatile long startupTime = -1;
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being collected
+     */
+    public OracleSysStatCollector(OracleConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Reads the current value of the given statistics into an array indexed by
+     * <code>statistic#</code>. Requested statistics missing from V$SYSSTAT are
+     * left as NaN. Nothing is allocated beyond what the driver needs.
+     * @param statistics the statistic numbers to read
+     * @param values receives the values; at least {@link #getStatisticLimit()} long
+     * @throws SQLException if the statistics could not be read
+     */
+    public void collect(int[] statistics, double[] values) throws SQLException {
+        for (int statistic : statistics) {
+            values[statistic] = Double.NaN;
+        }
+        if (statistics.length == 0) {
+            return;
+        }
+
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            int bindSize = getBindSize(statistics.length);
+            statement = connection.prepareStatement(SQL_RETRIEVE_STATISTICS
+                + getInList("statistic#", bindSize));
+            int index = 1;
+            for (int statistic : statistics) {
+                statement.setInt(index++, statistic);
+            }
+            while (index <= bindSize) {
+                statement.setInt(index++, -1);
+            }
+
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                int number = resultSet.getInt(1);
+                if (number == STARTUP_TIME) {
+                    this.startupTime = resultSet.getLong(2);
+                } else if ((number >= 0) && (number < values.length)) {
+                    values[number] = resultSet.getDouble(2);
+                }
+            }
+        } catch (SQLException e) {
+            reset();
+            throw e;
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * @param name a statistic name
+     * @return the <code>statistic#</code> of the name, or -1 if it is not a V$SYSSTAT statistic
+     * @throws SQLException if the statistic names could not be read
+     */
+    public int getStatisticNumber(String name) throws SQLException {
+        Integer number = getStatisticNumbers().get(name);
+        return (number != null) ? number : -1;
+    }
+
+    /**
+     * @return one more than the highest <code>statistic#</code>, i.e. the
+     * length of a values array for {@link #collect(int[], double[])}
+     * @throws SQLException if the statistic names could not be read
+     */
+    public int getStatisticLimit() throws SQLException {
+        getStatisticNumbers();
+        return this.statisticLimit;
+    }
+
+    /**
+     * @return a number that changes whenever the statistic numbers are
+     * resolved again, so callers know to drop what they derived from them
+     */
+    public int getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * @return the instance startup time, in seconds since the epoch, seen by
+     * the last collection; -1 before the first one
+     */
+    public long getStartupTime() {
+        return this.startupTime;
+    }
+
+    /**
+     * Forgets the resolved statistic numbers, e.g. after an instance restart.
+     */
+    public void reset() {
+        this.statisticNumbers = null;
+    }
+
+    private Map<String, Integer> getStatisticNumbers() throws SQLException {
+        Map<String, Integer> numbers = this.statisticNumbers;
+        if (numbers != null) {
+            return numbers;
+        }
+
+        numbers = new HashMap<String, Integer>();
+        int limit = 0;
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(SQL_RESOLVE_STATISTICS);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                int number = resultSet.getInt(1);
+                numbers.put(resultSet.getString(2), number);
+                limit = Math.max(limit, number + 1);
+            }
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+        this.statisticLimit = limit;
+        this.generation++;
+        this.statisticNumbers = numbers;
+        return numbers;
+    }
+
+    /**
+     * @param count the number of values to bind
+     * @return the smallest power of two, at least {@link #MIN_BIND_SIZE}, holding count values
+     */
+    static int getBindSize(int count) {
+        int size = MIN_BIND_SIZE;
+        while (size < count) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * @param column the column to match
+     * @param size the number of placeholders
+     * @return a condition matching the column against <code>size</code> bind
+     * placeholders, in IN lists of at most {@link #MAX_IN_LIST_SIZE}
+     */
+    static String getInList(String column, int size) {
+        boolean split = size > MAX_IN_LIST_SIZE;
+        StringBuilder list = new StringBuilder(size * 3 + 32);
+        if (split) {
+            list.append('(');
+        }
+        for (int i = 0; i < size; i++) {
+            if (i % MAX_IN_LIST_SIZE != 0) {
+                list.append(", ");
+            } else {
+                if (i > 0) {
+                    list.append(") OR ");
+                }
+                list.append(column).append(" IN (");
+            }
+            list.append('?');
+        }
+        list.append(')');
+        if (split) {
+            list.append(')');
+        }
+        return list.toString();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Space usage of every tablespace, read with one pass over
+ * DBA_TABLESPACE_USAGE_METRICS, whose size already accounts for autoextend.
+ * The usage of temporary tablespaces is taken from V$SORT_SEGMENT instead,
+ * as the usage metrics only show how much temp space was ever allocated.
+ * Growth is computed against the previous snapshot.
+ */
+public class OracleTablespaceSnapshot extends OracleSnapshotCache<Map<String, OracleTablespaceSnapshot.Tablespace>> {
+
+    static final String CONTENTS_TEMPORARY = "TEMPORARY";
+
+    private static final String SQL_RETRIEVE_TABLESPACES =
+        "SELECT " +
+        "   m.tablespace_name " +
+        "   , t.contents " +
+        "   , t.status " +
+        "   , DECODE(t.contents, 'TEMPORARY', NVL(s.used_blocks, 0), m.used_space) * t.block_size " +
+        "   , m.tablespace_size * t.block_size " +
+        "FROM " +
+        "   DBA_TABLESPACE_USAGE_METRICS m " +
+        "   JOIN DBA_TABLESPACES t ON t.tablespace_name = m.tablespace_name " +
+        "   LEFT OUTER JOIN " +
+        "   (SELECT " +
+        "       tablespace_name " +
+        "       , SUM(used_blocks) used_blocks " +
+        "    FROM " +
+        "       V$SORT_SEGMENT " +
+        "    GROUP BY " +
+        "       tablespace_name) s " +
+        "   ON s.tablespace_name = m.tablespace_name";
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being collected
+     */
+    public OracleTablespaceSnapshot(OracleConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    @Override
+    protected Map<String, Tablespace> load(Connection connection) throws SQLException {
+        Snapshot<Map<String, Tablespace>> previous = getLatest();
+        Map<String, Tablespace> tablespaces = new HashMap<String, Tablespace>();
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(SQL_RETRIEVE_TABLESPACES);
+            statement.setFetchSize(500);
+            resultSet = statement.executeQuery();
+            long now = System.currentTimeMillis();
+            while (resultSet.next()) {
+                String name = resultSet.getString(1);
+                Tablespace tablespace = new Tablespace(now, resultSet.getString(2), resultSet.getString(3),
+                    resultSet.getDouble(4), resultSet.getDouble(5));
+                Tablespace before = (previous != null) ? previous.getValue().get(name) : null;
+                tablespace.computeGrowth(before);
+                tablespaces.put(name, tablespace);
+            }
+        } finally {
+            JDBCUtil.safeClose(statement, resultSet);
+        }
+        return Collections.unmodifiableMap(tablespaces);
+    }
+
+    /**
+     * The space usage of one tablespace at the time of the snapshot.
+     */
+    public static class Tablespace {
+        private final long sampleTime;
+        private final String contents;
+        private final String status;
+        private final double usedBytes;
+        private final double maxBytes;
+        private double growthRate = Double.NaN;
+
+        Tablespace(long sampleTime, String contents, String status, double usedBytes, double maxBytes) {
+            this.sampleTime = sampleTime;
+            this.contents = contents;
+            this.status = status;
+            this.usedBytes = usedBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        private void computeGrowth(Tablespace previous) {
+            if ((previous != null) && (this.sampleTime > previous.sampleTime)
+                && !CONTENTS_TEMPORARY.equals(this.contents)) {
+                this.growthRate = (this.usedBytes - previous.usedBytes) * 3600000d
+                    / (this.sampleTime - previous.sampleTime);
+            }
+        }
+
+        /**
+         * @return PERMANENT, UNDO or TEMPORARY
+         */
+        public String getContents() {
+            return this.contents;
+        }
+
+        /**
+         * @return ONLINE, OFFLINE or READ ONLY
+         */
+        public String getStatus() {
+            return this.status;
+        }
+
+        public boolean isOnline() {
+            return !"OFFLINE".equals(this.status);
+        }
+
+        public double getUsedBytes() {
+            return this.usedBytes;
+        }
+
+        /**
+         * @return the size the tablespace can reach, autoextend included
+         */
+        public double getMaxBytes() {
+            return this.maxBytes;
+        }
+
+        /**
+         * @return the space left before the tablespace is full, autoextend included
+         */
+        public double getFreeBytes() {
+            return Math.max(0, this.maxBytes - this.usedBytes);
+        }
+
+        /**
+         * @return the used space as a fraction of the maximum size, as RHQ
+         * expects of percentage metrics
+         */
+        public double getUsedPercent() {
+            return (this.maxBytes > 0) ? this.usedBytes / this.maxBytes : 0;
+        }
+
+        /**
+         * @return the change of the used space since the previous snapshot in
+         * bytes per hour, negative when space was freed, or NaN for the first
+         * snapshot and for temporary tablespaces
+         */
+        public double getGrowthRate() {
+            return this.growthRate;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertyList;
+import org.rhq.core.domain.configuration.PropertyMap;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pluginapi.operation.OperationResult;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Samples V$SQLSTATS in the background and keeps the statements that used the
+ * most elapsed time, CPU, buffer gets and executions since the previous sample.
+ * <p>
+ * Only statements active since the previous sample are fetched. Their totals
+ * are kept in flat arrays indexed through a {@link LongIntHashMap} keyed by the
+ * numeric value of the <code>sql_id</code>, bounded by
+ * {@link #PROPERTY_MAX_TRACKED}; statements idle the longest are evicted first.
+ * The top statements per dimension are picked with fixed-size heaps, so memory
+ * stays flat however large the shared pool is.
+ */
+public class OracleTopSqlSampler implements Runnable {
+    private static final Log LOG = LogFactory.getLog(OracleTopSqlSampler.class);
+
+    static final String PROPERTY_SAMPLE_INTERVAL = "topSqlSampleInterval";
+    static final String PROPERTY_TOP_N = "topSqlSize";
+    static final String PROPERTY_MAX_TRACKED = "topSqlMaxTracked";
+
+    static final String METRIC_ELAPSED_SHARE = "topSqlElapsedShare";
+    static final String METRIC_CPU_SHARE = "topSqlCpuShare";
+    static final String METRIC_BUFFER_GETS_SHARE = "topSqlBufferGetsShare";
+    static final String METRIC_ACTIVE_STATEMENTS = "activeSqlStatements";
+
+    static final String OPERATION_LIST_TOP_SQL = "listTopSql";
+
+    static final int ELAPSED_TIME = 0;
+    static final int CPU_TIME = 1;
+    static final int BUFFER_GETS = 2;
+    static final int EXECUTIONS = 3;
+    private static final String[] DIMENSIONS = { "elapsedTime", "cpuTime", "bufferGets", "executions" };
+
+    /** The alphabet Oracle encodes the 64 bit sql_id hash in, five bits per character. */
+    private static final String SQL_ID_ALPHABET = "0123456789abcdfghjkmnpqrstuvwxyz";
+
+    /** Samples after which a statement that has not been active is forgotten. */
+    private static final int MAX_IDLE_SAMPLES = 12;
+
+    /** elapsed_time and cpu_time are in microseconds */
+    private static final String SQL_SAMPLE_SQLSTATS =
+        "SELECT " +
+        "   sql_id " +
+        "   , SUM(elapsed_time) / 1000 " +
+        "   , SUM(cpu_time) / 1000 " +
+        "   , SUM(buffer_gets) " +
+        "   , SUM(executions) " +
+        "   , MAX(last_active_time) " +
+        "FROM " +
+        "   V$SQLSTATS " +
+        "WHERE " +
+        "   last_active_time >= ? " +
+        "GROUP BY " +
+        "   sql_id";
+
+    private static final String SQL_RETRIEVE_SQL_TEXT =
+        "SELECT " +
+        "   sql_id " +
+        "   , MAX(sql_text) " +
+        "FROM " +
+        "   V$SQLSTATS " +
+        "WHERE " +
+        "   ";
+
+    private final OracleConnectionPool connectionPool;
+    private final int topN;
+    private final int maxTracked;
+
+    private final LongIntHashMap slots;
+    private long[] keys = new long[0];
+    private boolean[] used = new boolean[0];
+    private long[] lastActive = new long[0];
+    private double[][] totals = new double[DIMENSIONS.length][0];
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+    private long sampleNumber;
+    private Timestamp since = new Timestamp(0);
+    private long lastSampleTime;
+
+    private final TopHeap[] heaps;
+
+    private volatile TopSql top;
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being sampled
+     * @param topN the statements kept per dimension
+     * @param maxTracked the most statements whose previous totals are remembered
+     */
+    public OracleTopSqlSampler(OracleConnectionPool connectionPool, int topN, int maxTracked) {
+        this.connectionPool = connectionPool;
+        this.topN = Math.max(1, topN);
+        this.maxTracked = Math.max(1000, maxTracked);
+        this.slots = new LongIntHashMap(Math.min(this.maxTracked, 16384));
+        this.heaps = new TopHeap[DIMENSIONS.length];
+        for (int i = 0; i < DIMENSIONS.length; i++) {
+            this.heaps[i] = new TopHeap(i, this.topN);
+        }
+    }
+
+    /**
+     * @param name a metric name
+     * @return true if the metric is served by this sampler
+     */
+    public static boolean isTopSqlMetric(String name) {
+        return METRIC_ELAPSED_SHARE.equals(name) || METRIC_CPU_SHARE.equals(name)
+            || METRIC_BUFFER_GETS_SHARE.equals(name) || METRIC_ACTIVE_STATEMENTS.equals(name);
+    }
+
+    /**
+     * Never touches the database.
+     * @param name a top SQL metric name
+     * @return the value over the last sampling interval, or null before there is one
+     */
+    public Double getValue(String name) {
+        TopSql current = this.top;
+        if (current == null) {
+            return null;
+        }
+        if (METRIC_ELAPSED_SHARE.equals(name)) {
+            return current.getTopShare(ELAPSED_TIME);
+        } else if (METRIC_CPU_SHARE.equals(name)) {
+            return current.getTopShare(CPU_TIME);
+        } else if (METRIC_BUFFER_GETS_SHARE.equals(name)) {
+            return current.getTopShare(BUFFER_GETS);
+        } else if (METRIC_ACTIVE_STATEMENTS.equals(name)) {
+            return (double) current.activeStatements;
+        }
+        return null;
+    }
+
+    /**
+     * Takes one sample; failures keep the previous results.
+     */
+    public void run() {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(SQL_SAMPLE_SQLSTATS);
+            statement.setFetchSize(1000);
+            statement.setTimestamp(1, this.since);
+            resultSet = statement.executeQuery();
+
+            long now = System.currentTimeMillis();
+            long sample = ++this.sampleNumber;
+            boolean baseline = (this.lastSampleTime == 0);
+            for (TopHeap heap : this.heaps) {
+                heap.clear();
+            }
+            double[] sums = new double[DIMENSIONS.length];
+            double[] deltas = new double[DIMENSIONS.length];
+            int activeStatements = 0;
+            Timestamp latest = this.since;
+            while (resultSet.next()) {
+                long key = decodeSqlId(resultSet.getString(1));
+                Timestamp lastActiveTime = resultSet.getTimestamp(6);
+                if ((lastActiveTime != null) && lastActiveTime.after(latest)) {
+                    latest = lastActiveTime;
+                }
+                int slot = this.slots.get(key);
+                boolean known = (slot != LongIntHashMap.NO_VALUE);
+                if (!known) {
+                    slot = allocate(key);
+                }
+                boolean valid = known;
+                for (int i = 0; i < DIMENSIONS.length; i++) {
+                    double total = resultSet.getDouble(i + 2);
+                    deltas[i] = total - this.totals[i][slot];
+                    // a statement aged out of the shared pool and loaded again starts from zero
+                    valid &= (deltas[i] >= 0);
+                    this.totals[i][slot] = total;
+                }
+                this.lastActive[slot] = sample;
+                if (!valid || (deltas[EXECUTIONS] == 0 && deltas[ELAPSED_TIME] == 0)) {
+                    continue;
+                }
+                activeStatements++;
+                for (int i = 0; i < DIMENSIONS.length; i++) {
+                    sums[i] += deltas[i];
+                    this.heaps[i].offer(key, deltas);
+                }
+            }
+            this.since = latest;
+            evictIdle(sample);
+            if (!baseline) {
+                this.top = new TopSql(this.lastSampleTime, now, this.heaps, sums, activeStatements);
+            }
+            this.lastSampleTime = now;
+        } catch (SQLException e) {
+            LOG.info("Unable to sample V$SQLSTATS", e);
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            LOG.warn("Unable to sample V$SQLSTATS", e);
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * Lists the top statements of the last sampling interval in one dimension.
+     * @param config the operation parameters
+     * @return the statements, largest first, with their text
+     * @throws SQLException if the statement texts could not be read
+     */
+    public OperationResult listTopSql(Configuration config) throws SQLException {
+        String dimensionName = config.getSimpleValue("dimension", DIMENSIONS[ELAPSED_TIME]);
+        int dimension = -1;
+        for (int i = 0; i < DIMENSIONS.length; i++) {
+            if (DIMENSIONS[i].equalsIgnoreCase(dimensionName)) {
+                dimension = i;
+            }
+        }
+        if (dimension < 0) {
+            throw new IllegalArgumentException("Unknown dimension [" + dimensionName + "]");
+        }
+
+        TopSql current = this.top;
+        OperationResult result = new OperationResult();
+        PropertyList list = new PropertyList("topSqlList");
+        result.getComplexResults().put(list);
+        if (current == null) {
+            result.getComplexResults().put(new PropertySimple("interval", "No complete sampling interval yet"));
+            return result;
+        }
+        result.getComplexResults().put(new PropertySimple("interval", new Timestamp(current.start) + " - "
+            + new Timestamp(current.end)));
+
+        long[] keys = current.keys[dimension];
+        Map<String, String> texts = retrieveSqlText(keys);
+        // the UI lists map entries in reverse, so add them back to front
+        for (int i = keys.length - 1; i >= 0; i--) {
+            String sqlId = encodeSqlId(keys[i]);
+            PropertyMap row = new PropertyMap("topSql");
+            row.put(new PropertySimple("sqlId", sqlId));
+            for (int d = 0; d < DIMENSIONS.length; d++) {
+                row.put(new PropertySimple(DIMENSIONS[d], current.deltas[dimension][d][i]));
+            }
+            row.put(new PropertySimple("share", current.getShare(dimension, i)));
+            row.put(new PropertySimple("sqlText", texts.get(sqlId)));
+            list.add(row);
+        }
+        return result;
+    }
+
+    private Map<String, String> retrieveSqlText(long[] keys) throws SQLException {
+        Map<String, String> texts = new HashMap<String, String>();
+        if (keys.length == 0) {
+            return texts;
+        }
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            int bindSize = OracleSysStatCollector.getBindSize(keys.length);
+            statement = connection.prepareStatement(SQL_RETRIEVE_SQL_TEXT
+                + OracleSysStatCollector.getInList("sql_id", bindSize) + " GROUP BY sql_id");
+            int index = 1;
+            for (long key : keys) {
+                statement.setString(index++, encodeSqlId(key));
+            }
+            while (index <= bindSize) {
+                statement.setString(index++, null);
+            }
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                texts.put(resultSet.getString(1), resultSet.getString(2));
+            }
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+        return texts;
+    }
+
+    /**
+     * @param sqlId a 13 character <code>sql_id</code>
+     * @return the 64 bit hash it encodes
+     */
+    static long decodeSqlId(String sqlId) {
+        long value = 0;
+        for (int i = 0; i < sqlId.length(); i++) {
+            value = (value << 5) | SQL_ID_ALPHABET.indexOf(sqlId.charAt(i));
+        }
+        return value;
+    }
+
+    /**
+     * @param value a 64 bit hash
+     * @return its 13 character <code>sql_id</code>
+     */
+    static String encodeSqlId(long value) {
+        char[] sqlId = new char[13];
+        for (int i = sqlId.length - 1; i >= 0; i--) {
+            sqlId[i] = SQL_ID_ALPHABET.charAt((int) (value & 31));
+            value >>>= 5;
+        }
+        return new String(sqlId);
+    }
+
+    private int allocate(long key) {
+        if (this.freeCount == 0) {
+            if (this.keys.length < this.maxTracked) {
+                grow(Math.min(this.maxTracked, Math.max(1024, this.keys.length * 2)));
+            } else {
+                evictOldest();
+            }
+        }
+        int slot = this.freeSlots[--this.freeCount];
+        this.slots.put(key, slot);
+        this.keys[slot] = key;
+        this.used[slot] = true;
+        for (double[] dimension : this.totals) {
+            dimension[slot] = 0;
+        }
+        return slot;
+    }
+
+    /**
+     * Forgets statements that have not been active for a while.
+     */
+    private void evictIdle(long sample) {
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (this.used[slot] && (sample - this.lastActive[slot] > MAX_IDLE_SAMPLES)) {
+                free(slot);
+            }
+        }
+    }
+
+    /**
+     * Makes room when every slot is taken, forgetting roughly the least
+     * recently active eighth of the statements.
+     */
+    private void evictOldest() {
+        long oldest = Long.MAX_VALUE;
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (this.used[slot]) {
+                oldest = Math.min(oldest, this.lastActive[slot]);
+            }
+        }
+        int target = Math.max(1, this.keys.length / 8);
+        for (long cutoff = oldest; this.freeCount < target && cutoff <= this.sampleNumber; cutoff++) {
+            for (int slot = 0; slot < this.keys.length && this.freeCount < target; slot++) {
+                if (this.used[slot] && (this.lastActive[slot] <= cutoff)) {
+                    free(slot);
+                }
+            }
+        }
+    }
+
+    private void free(int slot) {
+        this.slots.remove(this.keys[slot]);
+        this.used[slot] = false;
+        this.freeSlots[this.freeCount++] = slot;
+    }
+
+    private void grow(int capacity) {
+        int oldCapacity = this.keys.length;
+        long[] newKeys = new long[capacity];
+        System.arraycopy(this.keys, 0, newKeys, 0, oldCapacity);
+        this.keys = newKeys;
+        boolean[] newUsed = new boolean[capacity];
+        System.arraycopy(this.used, 0, newUsed, 0, oldCapacity);
+        this.used = newUsed;
+        long[] newLastActive = new long[capacity];
+        System.arraycopy(this.lastActive, 0, newLastActive, 0, oldCapacity);
+        this.lastActive = newLastActive;
+        for (int i = 0; i < this.totals.length; i++) {
+            double[] newTotals = new double[capacity];
+            System.arraycopy(this.totals[i], 0, newTotals, 0, oldCapacity);
+            this.totals[i] = newTotals;
+        }
+        int[] newFreeSlots = new int[capacity];
+        System.arraycopy(this.freeSlots, 0, newFreeSlots, 0, this.freeCount);
+        for (int slot = capacity - 1; slot >= oldCapacity; slot--) {
+            newFreeSlots[this.freeCount++] = slot;
+        }
+        this.freeSlots = newFreeSlots;
+    }
+
+    /**
+     * A min-heap of fixed capacity keeping the statements with the largest
+     * delta in one dimension, along with their deltas in every dimension.
+     */
+    private static class TopHeap {
+        private final int dimension;
+        private final long[] keys;
+        private final double[][] deltas;
+        private int size;
+
+        TopHeap(int dimension, int capacity) {
+            this.dimension = dimension;
+            this.keys = new long[capacity];
+            this.deltas = new double[capacity][DIMENSIONS.length];
+        }
+
+        void clear() {
+            this.size = 0;
+        }
+
+        void offer(long key, double[] statementDeltas) {
+            double value = statementDeltas[this.dimension];
+            if (value <= 0) {
+                return;
+            }
+            if (this.size < this.keys.length) {
+                siftUp(this.size++, key, statementDeltas);
+            } else if (value > this.deltas[0][this.dimension]) {
+                siftDown(0, key, statementDeltas);
+            }
+        }
+
+        private void siftUp(int index, long key, double[] statementDeltas) {
+            double value = statementDeltas[this.dimension];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (this.deltas[parent][this.dimension] <= value) {
+                    break;
+                }
+                move(parent, index);
+                index = parent;
+            }
+            set(index, key, statementDeltas);
+        }
+
+        private void siftDown(int index, long key, double[] statementDeltas) {
+            double value = statementDeltas[this.dimension];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= this.size) {
+                    break;
+                }
+                if ((child + 1 < this.size)
+                    && (this.deltas[child + 1][this.dimension] < this.deltas[child][this.dimension])) {
+                    child++;
+                }
+                if (this.deltas[child][this.dimension] >= value) {
+                    break;
+                }
+                move(child, index);
+                index = child;
+            }
+            set(index, key, statementDeltas);
+        }
+
+        private void move(int from, int to) {
+            this.keys[to] = this.keys[from];
+            System.arraycopy(this.deltas[from], 0, this.deltas[to], 0, DIMENSIONS.length);
+        }
+
+        private void set(int index, long key, double[] statementDeltas) {
+            this.keys[index] = key;
+            System.arraycopy(statementDeltas, 0, this.deltas[index], 0, DIMENSIONS.length);
+        }
+    }
+
+    /**
+     * The result of one sampling interval, with each dimension's statements
+     * sorted largest first.
+     */
+    private static class TopSql {
+        private final long start;
+        private final long end;
+        private final long[][] keys;
+        private final double[][][] deltas;
+        private final double[] sums;
+        private final int activeStatements;
+
+        TopSql(long start, long end, TopHeap[] heaps, double[] sums, int activeStatements) {
+            this.start = start;
+            this.end = end;
+            this.sums = sums;
+            this.activeStatements = activeStatements;
+            this.keys = new long[heaps.length][];
+            this.deltas = new double[heaps.length][][];
+            for (int d = 0; d < heaps.length; d++) {
+                TopHeap heap = heaps[d];
+                Integer[] order = new Integer[heap.size];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                final double[][] heapDeltas = heap.deltas;
+                final int dimension = d;
+                Arrays.sort(order, new Comparator<Integer>() {
+                    public int compare(Integer a, Integer b) {
+                        return Double.compare(heapDeltas[b][dimension], heapDeltas[a][dimension]);
+                    }
+                });
+                this.keys[d] = new long[order.length];
+                this.deltas[d] = new double[DIMENSIONS.length][order.length];
+                for (int i = 0; i < order.length; i++) {
+                    this.keys[d][i] = heap.keys[order[i]];
+                    for (int k = 0; k < DIMENSIONS.length; k++) {
+                        this.deltas[d][k][i] = heapDeltas[order[i]][k];
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the share of the dimension's total taken by the i-th statement
+         */
+        double getShare(int dimension, int i) {
+            return (this.sums[dimension] > 0) ? this.deltas[dimension][dimension][i] / this.sums[dimension] : 0;
+        }
+
+        /**
+         * @return the share of the dimension's total taken by its top statement
+         */
+        double getTopShare(int dimension) {
+            return (this.keys[dimension].length > 0) ? getShare(dimension, 0) : 0;
+        }
+    }
+}
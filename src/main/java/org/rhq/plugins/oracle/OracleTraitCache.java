@@ -0,0 +1,129 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Caches the V$PARAMETER values reported as traits.
+ * <p>
+ * Every lookup first reads the instance startup time from V$INSTANCE. The
+ * parameters are only read again when the instance has restarted or the
+ * configured TTL has expired, so a parameter changed with ALTER SYSTEM is
+ * reported at most one TTL late. Oracle exposes no cheap marker of such a
+ * change: counting the modified rows of V$PARAMETER costs as much as reading
+ * them and does not move when an already modified parameter changes again.
+ */
+public class OracleTraitCache {
+    static final String PROPERTY_TTL = "traitCacheTtl";
+
+    private static final String SQL_RETRIEVE_TRAITS =
+        "SELECT " +
+        "   name " +
+        "   , value " +
+        "FROM " +
+        "   V$PARAMETER";
+    private static final String SQL_RETRIEVE_STARTUP_TIME =
+        "SELECT " +
+        "   TO_CHAR(startup_time, 'YYYYMMDDHH24MISS') " +
+        "FROM " +
+        "   V$INSTANCE";
+
+    private final OracleConnectionPool connectionPool;
+    private final long ttl;
+
+    private Map<String, String> values = Collections.emptyMap();
+    private String startupTime;
+    private long loadedAt;
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being collected
+     * @param ttl the longest time, in milliseconds, values are served without a reload
+     */
+    public OracleTraitCache(OracleConnectionPool connectionPool, long ttl) {
+        this.connectionPool = connectionPool;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the V$PARAMETER values keyed by parameter name
+     * @throws SQLException if the startup time or the parameters could not be read
+     */
+    public synchronized Map<String, String> getValues() throws SQLException {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(SQL_RETRIEVE_STARTUP_TIME);
+            resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                throw new SQLException("V$INSTANCE returned no rows");
+            }
+            String currentStartupTime = resultSet.getString(1);
+            JDBCUtil.safeClose(statement, resultSet);
+            statement = null;
+            resultSet = null;
+
+            long now = System.currentTimeMillis();
+            if (!currentStartupTime.equals(this.startupTime) || (now - this.loadedAt >= this.ttl)) {
+                this.values = loadValues(connection);
+                this.startupTime = currentStartupTime;
+                this.loadedAt = now;
+            }
+            return this.values;
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * @return the instance startup time seen by the last lookup, or null before the first one
+     */
+    public synchronized String getStartupTime() {
+        return this.startupTime;
+    }
+
+    private static Map<String, String> loadValues(Connection connection) throws SQLException {
+        Map<String, String> values = new HashMap<String, String>();
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(SQL_RETRIEVE_TRAITS);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                String value = resultSet.getString(2);
+                if (value != null) {
+                    values.put(resultSet.getString(1), value);
+                }
+            }
+        } finally {
+            JDBCUtil.safeClose(statement, resultSet);
+        }
+        return Collections.unmodifiableMap(values);
+    }
+}
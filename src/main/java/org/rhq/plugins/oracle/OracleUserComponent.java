@@ -18,75 +18,80 @@
  */
 package org.rhq.plugins.oracle;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.rhq.core.domain.configuration.Configuration;
-import org.rhq.core.domain.configuration.PropertyList;
-import org.rhq.core.domain.configuration.PropertyMap;
-import org.rhq.core.domain.configuration.PropertySimple;
 import org.rhq.core.domain.measurement.AvailabilityType;
 import org.rhq.core.domain.measurement.MeasurementDataNumeric;
 import org.rhq.core.domain.measurement.MeasurementReport;
 import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
-import org.rhq.core.pluginapi.inventory.CreateChildResourceFacet;
-import org.rhq.core.pluginapi.inventory.CreateResourceReport;
 import org.rhq.core.pluginapi.measurement.MeasurementFacet;
-import org.rhq.core.pluginapi.operation.OperationFacet;
-import org.rhq.core.pluginapi.operation.OperationResult;
-import org.rhq.core.util.jdbc.JDBCUtil;
 import org.rhq.plugins.database.AbstractDatabaseComponent;
-import org.rhq.plugins.database.DatabaseComponent;
-import org.rhq.plugins.database.DatabaseQueryUtility;
+import org.rhq.plugins.oracle.OracleSnapshotCache.Snapshot;
+import org.rhq.plugins.oracle.OracleUserSessionSnapshot.UserSessions;
 
 /**
  * @author Greg Hinkle
  */
-public class OracleUserComponent extends AbstractDatabaseComponent<DatabaseComponent> implements MeasurementFacet {
+public class OracleUserComponent extends AbstractDatabaseComponent<OracleServerComponent> implements MeasurementFacet {
     private static final Log log = LogFactory.getLog(OracleUserComponent.class);
 	private String userName;
 	
 	
 	public AvailabilityType getAvailability() {
-        PreparedStatement statement = null;
-        ResultSet resultSet = null;
-        
         userName = this.resourceContext.getResourceKey();
 
         try {
-            statement = getConnection().prepareStatement("SELECT COUNT(*) FROM DBA_USERS WHERE username = ?");
-            statement.setString(1, userName);
-            resultSet = statement.executeQuery();
-            if (resultSet.next() && (resultSet.getInt(1) == 1)) {
+            if (this.resourceContext.getParentResourceComponent().getUserIndex().exists(userName)) {
                 return AvailabilityType.UP;
             }
         } catch (SQLException e) {
             // Problems ? Mark the resource as down
-        } finally {
-            JDBCUtil.safeClose(statement, resultSet);
         }
 
         return AvailabilityType.DOWN;
     }
 
     public void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> metrics) throws Exception {
+        if (this.resourceContext.getParentResourceComponent().isCollectionSuspended()) {
+            return;
+        }
+        OracleUserSessionSnapshot cache = this.resourceContext.getParentResourceComponent()
+            .getUserSessionSnapshot();
+        Snapshot<Map<String, UserSessions>> snapshot = cache.get(OracleSnapshotCache.getMaxAge(metrics));
+        if (snapshot == null) {
+            // the first background refresh has not completed yet
+            return;
+        }
+        UserSessions sessions = snapshot.getValue().get(this.resourceContext.getResourceKey());
+        if (sessions == null) {
+            sessions = UserSessions.NONE;
+        }
+
         for (MeasurementScheduleRequest request : metrics) {
-            if (request.getName().equals("sessions")) {
-                Map<String, Double> values = DatabaseQueryUtility
-                    .getNumericQueryValues(this, "SELECT COUNT(*) as activeConnections FROM V$SESSION WHERE username = ?",
-                        this.resourceContext.getResourceKey());
-                Double sessions = values.get("count");
-                if (sessions != null) {
-                    report.addData(new MeasurementDataNumeric(request, sessions));
-                }
+            String name = request.getName();
+            double value;
+            if (name.equals("activeConnections")) {
+                value = sessions.getSessions();
+            } else if (name.equals("activeSessions")) {
+                value = sessions.getActiveSessions();
+            } else if (name.equals("cpuTime")) {
+                value = sessions.getCpuTime();
+            } else if (name.equals("logicalReads")) {
+                value = sessions.getLogicalReads();
+            } else if (name.equals("physicalReads")) {
+                value = sessions.getPhysicalReads();
+            } else {
+                continue;
+            }
+            if (!cache.markReported(request, snapshot)) {
+                // this snapshot was already reported, no newer one is loaded yet
+                continue;
             }
+            report.addData(new MeasurementDataNumeric(snapshot.getTimestamp(), request, value));
         }
     }
-    
 }
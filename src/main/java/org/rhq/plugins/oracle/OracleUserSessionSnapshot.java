@@ -0,0 +1,136 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Session counts and session statistics of every database user, read with a
+ * single grouped query over V$SESSION and V$SESSTAT.
+ */
+public class OracleUserSessionSnapshot extends OracleSnapshotCache<Map<String, OracleUserSessionSnapshot.UserSessions>> {
+
+    private static final String SQL_RETRIEVE_USER_SESSIONS =
+        "SELECT " +
+        "   s.username " +
+        "   , COUNT(*) " +
+        "   , SUM(DECODE(s.status, 'ACTIVE', 1, 0)) " +
+        "   , NVL(SUM(st.cpu), 0) " +
+        "   , NVL(SUM(st.logical_reads), 0) " +
+        "   , NVL(SUM(st.physical_reads), 0) " +
+        "FROM " +
+        "   V$SESSION s " +
+        "   , (SELECT " +
+        "         t.sid " +
+        "         , SUM(DECODE(n.name, 'CPU used by this session', t.value, 0)) cpu " +
+        "         , SUM(DECODE(n.name, 'session logical reads', t.value, 0)) logical_reads " +
+        "         , SUM(DECODE(n.name, 'physical reads', t.value, 0)) physical_reads " +
+        "      FROM " +
+        "         V$SESSTAT t " +
+        "         , V$STATNAME n " +
+        "      WHERE " +
+        "         t.statistic# = n.statistic# " +
+        "         AND n.name IN ('CPU used by this session', 'session logical reads', 'physical reads') " +
+        "      GROUP BY " +
+        "         t.sid) st " +
+        "WHERE " +
+        "   st.sid (+) = s.sid " +
+        "   AND s.username IS NOT NULL " +
+        "GROUP BY " +
+        "   s.username";
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being collected
+     */
+    public OracleUserSessionSnapshot(OracleConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    @Override
+    protected Map<String, UserSessions> load(Connection connection) throws SQLException {
+        Map<String, UserSessions> users = new HashMap<String, UserSessions>();
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(SQL_RETRIEVE_USER_SESSIONS);
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                // CPU is reported in centiseconds
+                users.put(resultSet.getString(1), new UserSessions(resultSet.getInt(2), resultSet.getInt(3),
+                    resultSet.getDouble(4) * 10, resultSet.getDouble(5), resultSet.getDouble(6)));
+            }
+        } finally {
+            JDBCUtil.safeClose(statement, resultSet);
+        }
+        return Collections.unmodifiableMap(users);
+    }
+
+    /**
+     * The sessions of one user at the time of the snapshot.
+     */
+    public static class UserSessions {
+        /** Used for users without any session. */
+        public static final UserSessions NONE = new UserSessions(0, 0, 0, 0, 0);
+
+        private final int sessions;
+        private final int activeSessions;
+        private final double cpuTime;
+        private final double logicalReads;
+        private final double physicalReads;
+
+        UserSessions(int sessions, int activeSessions, double cpuTime, double logicalReads, double physicalReads) {
+            this.sessions = sessions;
+            this.activeSessions = activeSessions;
+            this.cpuTime = cpuTime;
+            this.logicalReads = logicalReads;
+            this.physicalReads = physicalReads;
+        }
+
+        public int getSessions() {
+            return this.sessions;
+        }
+
+        public int getActiveSessions() {
+            return this.activeSessions;
+        }
+
+        /**
+         * @return CPU used by the user's current sessions, in milliseconds
+         */
+        public double getCpuTime() {
+            return this.cpuTime;
+        }
+
+        public double getLogicalReads() {
+            return this.logicalReads;
+        }
+
+        public double getPhysicalReads() {
+            return this.physicalReads;
+        }
+    }
+}
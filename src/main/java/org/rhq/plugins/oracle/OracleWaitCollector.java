@@ -0,0 +1,373 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertyList;
+import org.rhq.core.domain.configuration.PropertyMap;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pluginapi.operation.OperationResult;
+import org.rhq.core.util.jdbc.JDBCUtil;
+
+/**
+ * Reports where the instance spends its time waiting.
+ * <p>
+ * Wait class rates come from one read of V$SYSTEM_WAIT_CLASS per collection,
+ * with the previous totals kept in arrays indexed by <code>wait_class#</code>.
+ * The top wait events are computed on demand from two V$SYSTEM_EVENT snapshots:
+ * the one kept from the previous request and a fresh one. Only when the kept
+ * snapshot is missing or younger than the requested window does the request
+ * wait, and no connection is held while it does.
+ */
+public class OracleWaitCollector {
+
+    /** Appended to a wait class name to request its time waited, e.g. "User I/O wait time per second". */
+    static final String WAIT_TIME_SUFFIX = " wait time per second";
+
+    /** Appended to a wait class name to request its wait count, e.g. "Commit waits per second". */
+    static final String WAITS_SUFFIX = " waits per second";
+
+    static final String OPERATION_LIST_TOP_WAIT_EVENTS = "listTopWaitEvents";
+
+    private static final int DEFAULT_SAMPLE_SECONDS = 10;
+    private static final int MAX_SAMPLE_SECONDS = 300;
+    private static final int DEFAULT_TOP_N = 10;
+
+    /** time_waited is in centiseconds */
+    private static final String SQL_RETRIEVE_WAIT_CLASSES =
+        "SELECT " +
+        "   wait_class# " +
+        "   , wait_class " +
+        "   , total_waits " +
+        "   , time_waited * 10 " +
+        "FROM " +
+        "   V$SYSTEM_WAIT_CLASS";
+
+    private static final String SQL_RETRIEVE_WAIT_EVENTS =
+        "SELECT " +
+        "   event_id " +
+        "   , event " +
+        "   , wait_class " +
+        "   , total_waits " +
+        "   , time_waited_micro / 1000 " +
+        "FROM " +
+        "   V$SYSTEM_EVENT " +
+        "WHERE " +
+        "   wait_class <> 'Idle'";
+
+    private final OracleConnectionPool connectionPool;
+
+    private volatile Map<String, Integer> waitClassNumbers;
+
+    private long timestamp;
+    private double[] waits = new double[0];
+    private double[] times = new double[0];
+    private double[] waitRates = new double[0];
+    private double[] timeRates = new double[0];
+
+    private final Object eventLock = new Object();
+    private EventSnapshot lastEvents;
+
+    /**
+     * @param connectionPool the pool of the Oracle Server being collected
+     */
+    public OracleWaitCollector(OracleConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * @param metric a metric name
+     * @return true if the metric names a wait class rate, though the class itself may not exist
+     */
+    public static boolean isWaitMetric(String metric) {
+        return metric.endsWith(WAIT_TIME_SUFFIX) || metric.endsWith(WAITS_SUFFIX);
+    }
+
+    /**
+     * @param metric a metric name
+     * @return true if the metric is a time waited rate rather than a wait count rate
+     */
+    public static boolean isWaitTimeMetric(String metric) {
+        return metric.endsWith(WAIT_TIME_SUFFIX);
+    }
+
+    /**
+     * @param metric a wait class metric name
+     * @return the <code>wait_class#</code> the metric is about, or -1 if there is no such class
+     * @throws SQLException if the wait classes could not be read
+     */
+    public int getWaitClass(String metric) throws SQLException {
+        String waitClass = metric.substring(0, metric.length()
+            - (isWaitTimeMetric(metric) ? WAIT_TIME_SUFFIX : WAITS_SUFFIX).length());
+        if (this.waitClassNumbers == null) {
+            collect();
+        }
+        Integer number = this.waitClassNumbers.get(waitClass);
+        return (number != null) ? number : -1;
+    }
+
+    /**
+     * Reads the wait class totals and updates the rates.
+     * @throws SQLException if the wait classes could not be read
+     */
+    public synchronized void collect() throws SQLException {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(SQL_RETRIEVE_WAIT_CLASSES);
+            resultSet = statement.executeQuery();
+
+            long now = System.currentTimeMillis();
+            double elapsedSeconds = (this.timestamp > 0) ? (now - this.timestamp) / 1000d : Double.NaN;
+            Map<String, Integer> numbers = (this.waitClassNumbers == null) ? new HashMap<String, Integer>() : null;
+            while (resultSet.next()) {
+                int number = resultSet.getInt(1);
+                if (numbers != null) {
+                    numbers.put(resultSet.getString(2), number);
+                }
+                if (number >= this.waits.length) {
+                    grow(number + 1);
+                }
+                double totalWaits = resultSet.getDouble(3);
+                double timeWaited = resultSet.getDouble(4);
+                this.waitRates[number] = rate(this.waits[number], totalWaits, elapsedSeconds);
+                this.timeRates[number] = rate(this.times[number], timeWaited, elapsedSeconds);
+                this.waits[number] = totalWaits;
+                this.times[number] = timeWaited;
+            }
+            this.timestamp = now;
+            if (numbers != null) {
+                this.waitClassNumbers = numbers;
+            }
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * @param waitClass a <code>wait_class#</code>
+     * @return the waits per second between the last two collections, or NaN
+     */
+    public synchronized double getWaitRate(int waitClass) {
+        return ((waitClass >= 0) && (waitClass < this.waitRates.length)) ? this.waitRates[waitClass] : Double.NaN;
+    }
+
+    /**
+     * @param waitClass a <code>wait_class#</code>
+     * @return the milliseconds waited per second between the last two collections, or NaN
+     */
+    public synchronized double getTimeRate(int waitClass) {
+        return ((waitClass >= 0) && (waitClass < this.timeRates.length)) ? this.timeRates[waitClass] : Double.NaN;
+    }
+
+    /**
+     * Lists the non-idle wait events that accumulated the most time waited
+     * since the previous request, over a window of at least the requested
+     * sample seconds.
+     * @param config the operation parameters
+     * @return the top events, most time waited first, and the window length
+     * @throws SQLException if the wait events could not be read
+     * @throws InterruptedException if interrupted while waiting for the window to fill
+     */
+    public OperationResult listTopWaitEvents(Configuration config) throws SQLException, InterruptedException {
+        int sampleSeconds = Math.min(MAX_SAMPLE_SECONDS, Math.max(1, OracleServerComponent.getIntValue(config,
+            "sampleSeconds", DEFAULT_SAMPLE_SECONDS)));
+        int topN = OracleServerComponent.getIntValue(config, OracleDiagnosticOperation.PARAMETER_TOP_N,
+            DEFAULT_TOP_N);
+
+        EventSnapshot before;
+        synchronized (this.eventLock) {
+            before = this.lastEvents;
+        }
+        if (before == null) {
+            before = snapshotEvents();
+        }
+        long remaining = before.timestamp + sampleSeconds * 1000L - System.currentTimeMillis();
+        if (remaining > 0) {
+            Thread.sleep(remaining);
+        }
+        EventSnapshot after = snapshotEvents();
+        synchronized (this.eventLock) {
+            if ((this.lastEvents == null) || (this.lastEvents.timestamp < after.timestamp)) {
+                this.lastEvents = after;
+            }
+        }
+
+        List<EventDelta> deltas = new ArrayList<EventDelta>();
+        double totalTime = 0;
+        for (int i = 0; i < after.size; i++) {
+            int previous = before.slots.get(after.ids[i]);
+            if (previous == LongIntHashMap.NO_VALUE) {
+                continue;
+            }
+            double waitDelta = after.waits[i] - before.waits[previous];
+            double timeDelta = after.times[i] - before.times[previous];
+            if ((waitDelta > 0) && (timeDelta >= 0)) {
+                deltas.add(new EventDelta(after.events[i], after.waitClasses[i], waitDelta, timeDelta));
+                totalTime += timeDelta;
+            }
+        }
+        Collections.sort(deltas, new Comparator<EventDelta>() {
+            public int compare(EventDelta a, EventDelta b) {
+                return Double.compare(b.timeWaited, a.timeWaited);
+            }
+        });
+        if ((topN > 0) && (deltas.size() > topN)) {
+            deltas = deltas.subList(0, topN);
+        }
+
+        PropertyList list = new PropertyList("topWaitEventList");
+        // the UI lists map entries in reverse, so add them back to front
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            EventDelta delta = deltas.get(i);
+            PropertyMap row = new PropertyMap("topWaitEvent");
+            row.put(new PropertySimple("event", delta.event));
+            row.put(new PropertySimple("waitClass", delta.waitClass));
+            row.put(new PropertySimple("waits", delta.waits));
+            row.put(new PropertySimple("timeWaited", delta.timeWaited));
+            row.put(new PropertySimple("averageWait", delta.timeWaited / delta.waits));
+            row.put(new PropertySimple("percentOfWaitTime", (totalTime > 0) ? 100 * delta.timeWaited / totalTime
+                : 0d));
+            list.add(row);
+        }
+        OperationResult result = new OperationResult();
+        result.getComplexResults().put(list);
+        result.getComplexResults().put(new PropertySimple("windowSeconds",
+            (after.timestamp - before.timestamp) / 1000d));
+        return result;
+    }
+
+    private EventSnapshot snapshotEvents() throws SQLException {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = this.connectionPool.getConnection();
+            statement = connection.prepareStatement(SQL_RETRIEVE_WAIT_EVENTS);
+            statement.setFetchSize(500);
+            resultSet = statement.executeQuery();
+            EventSnapshot snapshot = new EventSnapshot(System.currentTimeMillis());
+            while (resultSet.next()) {
+                snapshot.add(resultSet.getLong(1), resultSet.getString(2), resultSet.getString(3), resultSet
+                    .getDouble(4), resultSet.getDouble(5));
+            }
+            return snapshot;
+        } finally {
+            JDBCUtil.safeClose(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * @return the per-second rate of a counter, NaN without a previous value or if the counter went backwards
+     */
+    private static double rate(double previous, double current, double elapsedSeconds) {
+        if (Double.isNaN(elapsedSeconds) || (elapsedSeconds <= 0) || (current < previous)) {
+            return Double.NaN;
+        }
+        return (current - previous) / elapsedSeconds;
+    }
+
+    private void grow(int length) {
+        int oldLength = this.waits.length;
+        this.waits = copy(this.waits, length);
+        this.times = copy(this.times, length);
+        this.waitRates = copy(this.waitRates, length);
+        this.timeRates = copy(this.timeRates, length);
+        for (int i = oldLength; i < length; i++) {
+            this.waitRates[i] = Double.NaN;
+            this.timeRates[i] = Double.NaN;
+        }
+    }
+
+    private static double[] copy(double[] array, int length) {
+        double[] copy = new double[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    /**
+     * The totals of every non-idle wait event at one point in time, in
+     * parallel arrays indexed through the event id.
+     */
+    private static class EventSnapshot {
+        private final long timestamp;
+        private final LongIntHashMap slots = new LongIntHashMap(2048);
+        private long[] ids = new long[2048];
+        private String[] events = new String[2048];
+        private String[] waitClasses = new String[2048];
+        private double[] waits = new double[2048];
+        private double[] times = new double[2048];
+        private int size;
+
+        EventSnapshot(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        void add(long id, String event, String waitClass, double totalWaits, double timeWaited) {
+            if (this.size == this.ids.length) {
+                int length = this.size * 2;
+                long[] newIds = new long[length];
+                System.arraycopy(this.ids, 0, newIds, 0, this.size);
+                this.ids = newIds;
+                String[] newEvents = new String[length];
+                System.arraycopy(this.events, 0, newEvents, 0, this.size);
+                this.events = newEvents;
+                String[] newWaitClasses = new String[length];
+                System.arraycopy(this.waitClasses, 0, newWaitClasses, 0, this.size);
+                this.waitClasses = newWaitClasses;
+                this.waits = copy(this.waits, length);
+                this.times = copy(this.times, length);
+            }
+            this.slots.put(id, this.size);
+            this.ids[this.size] = id;
+            this.events[this.size] = event;
+            this.waitClasses[this.size] = waitClass;
+            this.waits[this.size] = totalWaits;
+            this.times[this.size] = timeWaited;
+            this.size++;
+        }
+    }
+
+    private static class EventDelta {
+        private final String event;
+        private final String waitClass;
+        private final double waits;
+        private final double timeWaited;
+
+        EventDelta(String event, String waitClass, double waits, double timeWaited) {
+            this.event = event;
+            this.waitClass = waitClass;
+            this.waits = waits;
+            this.timeWaited = timeWaited;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+@Test
+public class LongIntHashMapTest {
+
+    public void testPutReplacesValue() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        map.put(42L, 1);
+        map.put(42L, 2);
+        assertEquals(map.get(42L), 2);
+        assertEquals(map.size(), 1);
+    }
+
+    public void testAbsentKey() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        map.put(1L, 1);
+        assertEquals(map.get(2L), LongIntHashMap.NO_VALUE);
+        assertEquals(map.remove(2L), LongIntHashMap.NO_VALUE);
+        assertEquals(map.size(), 1);
+    }
+
+    public void testGrowsPastExpectedSize() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i * 7919L, i);
+        }
+        assertEquals(map.size(), 10000);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(map.get(i * 7919L), i);
+        }
+    }
+
+    public void testClear() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        map.put(1L, 1);
+        map.put(2L, 2);
+        map.clear();
+        assertEquals(map.size(), 0);
+        assertEquals(map.get(1L), LongIntHashMap.NO_VALUE);
+        map.put(1L, 3);
+        assertEquals(map.get(1L), 3);
+    }
+
+    /**
+     * Keys from a small range in a table that never grows collide and wrap
+     * around its end, so every removal has to shift a probe chain back.
+     */
+    public void testRemoveKeepsProbeChainsReachable() {
+        Random random = new Random(1);
+        LongIntHashMap map = new LongIntHashMap(16);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(40);
+            if ((expected.size() < 20) && random.nextBoolean()) {
+                map.put(key, i);
+                expected.put(key, i);
+            } else {
+                Integer removed = expected.remove(key);
+                assertEquals(map.remove(key), (removed != null) ? removed.intValue() : LongIntHashMap.NO_VALUE);
+            }
+            assertEquals(map.size(), expected.size());
+        }
+        for (long key = 0; key < 40; key++) {
+            Integer value = expected.get(key);
+            assertEquals(map.get(key), (value != null) ? value.intValue() : LongIntHashMap.NO_VALUE);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+@Test
+public class OracleCollectionBreakerTest {
+
+    private static final long HEALTHY = 1000000L;
+    private static final long SLOW = 20 * 1000000000L;
+
+    public void testHealthyCyclesNeverTrip() {
+        Breaker breaker = new Breaker(10, 3600);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(breaker.allowCycle());
+            breaker.recordCycle(HEALTHY, false);
+        }
+        assertFalse(breaker.isOpen());
+    }
+
+    public void testOnlyConsecutiveUnhealthyCyclesTrip() {
+        Breaker breaker = new Breaker(10, 3600);
+        for (int i = 0; i < 10; i++) {
+            breaker.recordCycle(SLOW, false);
+            breaker.recordCycle(0, true);
+            breaker.recordCycle(HEALTHY, false);
+        }
+        assertFalse(breaker.isOpen());
+
+        breaker.recordCycle(SLOW, false);
+        breaker.recordCycle(0, true);
+        breaker.recordCycle(SLOW, false);
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowCycle());
+    }
+
+    public void testThinsOutAfterBackoffAndRecovers() {
+        Breaker breaker = new Breaker(10, 3600);
+        trip(breaker);
+        breaker.advance(59 * 1000L);
+        assertFalse(breaker.allowCycle());
+        breaker.advance(1000L);
+
+        // one cycle in two
+        assertFalse(breaker.allowCycle());
+        assertTrue(breaker.allowCycle());
+        assertFalse(breaker.allowCycle());
+        assertTrue(breaker.allowCycle());
+
+        breaker.recordCycle(HEALTHY, false);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(breaker.allowCycle());
+        }
+
+        // the backoff was reset by the recovery
+        trip(breaker);
+        breaker.advance(60 * 1000L);
+        assertFalse(breaker.isOpen());
+    }
+
+    public void testUnhealthyThinnedCycleTripsWithLongerBackoff() {
+        Breaker breaker = new Breaker(10, 150);
+        trip(breaker);
+        breaker.advance(60 * 1000L);
+        assertFalse(breaker.allowCycle());
+        assertTrue(breaker.allowCycle());
+
+        breaker.recordCycle(SLOW, false);
+        assertTrue(breaker.isOpen());
+        breaker.advance(119 * 1000L);
+        assertTrue(breaker.isOpen());
+        breaker.advance(1000L);
+        assertFalse(breaker.isOpen());
+
+        // one cycle in four
+        int allowed = 0;
+        for (int i = 0; i < 8; i++) {
+            allowed += breaker.allowCycle() ? 1 : 0;
+        }
+        assertEquals(allowed, 2);
+
+        // capped at the configured maximum
+        breaker.recordCycle(0, true);
+        breaker.advance(150 * 1000L);
+        assertFalse(breaker.isOpen());
+    }
+
+    private static void trip(Breaker breaker) {
+        for (int i = 0; i < OracleCollectionBreaker.TRIP_AFTER; i++) {
+            breaker.recordCycle(SLOW, false);
+        }
+        assertTrue(breaker.isOpen());
+    }
+
+    /**
+     * A breaker on a clock that only moves when told to.
+     */
+    private static class Breaker extends OracleCollectionBreaker {
+        private long now = 1000000L;
+
+        Breaker(int slowThreshold, int maxBackoff) {
+            super(slowThreshold, maxBackoff);
+        }
+
+        void advance(long millis) {
+            this.now += millis;
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return this.now;
+        }
+    }
+}
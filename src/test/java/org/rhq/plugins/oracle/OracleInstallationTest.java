@@ -0,0 +1,112 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+@Test
+public class OracleInstallationTest {
+
+    public void testReadOratab() throws IOException {
+        File directory = createDirectory();
+        try {
+            File oratab = write(new File(directory, "oratab"), "# comment\n" + "\n"
+                + "ORCL:/u01/app/oracle/product/19.0.0/dbhome_1:Y\n" + "  XE:/opt/oracle/xe:N  \n"
+                + "*:/u01/app/oracle/product/12.1.0/dbhome_1:N\n" + "NOHOME::N\n" + "garbage\n");
+            Map<String, String> expected = new HashMap<String, String>();
+            expected.put("ORCL", "/u01/app/oracle/product/19.0.0/dbhome_1");
+            expected.put("XE", "/opt/oracle/xe");
+            assertEquals(OracleInstallation.readOratab(oratab), expected);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    public void testReadMissingOratab() throws IOException {
+        File directory = createDirectory();
+        try {
+            assertTrue(OracleInstallation.readOratab(new File(directory, "oratab")).isEmpty());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    public void testVersionFromInventory() throws IOException {
+        File directory = createDirectory();
+        try {
+            // the inventory wins over the path, and both give major.minor
+            File home = new File(directory, "product/11.2.0/dbhome_1");
+            File inventory = new File(home, "inventory/ContentsXML");
+            assertTrue(inventory.mkdirs());
+            write(new File(inventory, "comps.xml"), "<PRD_LIST>\n<TL_LIST>\n"
+                + "<COMP NAME=\"oracle.server\" VER=\"19.0.0.0.0\" BUILD_NUMBER=\"0\" REP_VER=\"0.0.0.0.0\">\n"
+                + "</TL_LIST>\n</PRD_LIST>\n");
+            assertEquals(OracleInstallation.findVersion(home.getPath()), "19.0");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    public void testVersionFromPath() {
+        assertEquals(OracleInstallation.findVersion("/u01/app/oracle/product/12.1.0/dbhome_1"), "12.1");
+        assertEquals(OracleInstallation.findVersion("/u01/app/oracle/product/10.2.0/db_1/dbs"), "10.2");
+    }
+
+    public void testUnknownVersion() {
+        assertNull(OracleInstallation.findVersion(null));
+        assertNull(OracleInstallation.findVersion("/opt/oracle/xe"));
+        assertNull(OracleInstallation.findVersion("/opt/oracle/19c/dbhome"));
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("oracle", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        return directory;
+    }
+
+    private static File write(File file, String contents) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+@Test
+public class OracleLatencyHistogramTest {
+
+    /** The last bucket, where durations past the largest tracked power of two land. */
+    private static final int LAST_BUCKET = OracleLatencyHistogram.bucket(Long.MAX_VALUE);
+
+    public void testSmallDurationsAreExact() {
+        for (int micros = 0; micros < 16; micros++) {
+            assertEquals(OracleLatencyHistogram.bucket(micros), micros);
+            assertEquals(OracleLatencyHistogram.lowerBound(micros), micros);
+            assertEquals(OracleLatencyHistogram.upperBound(micros), micros);
+        }
+        assertEquals(OracleLatencyHistogram.bucket(-5), 0);
+    }
+
+    public void testBucketsTileTheRange() {
+        for (int bucket = 0; bucket <= LAST_BUCKET; bucket++) {
+            long lower = OracleLatencyHistogram.lowerBound(bucket);
+            long upper = OracleLatencyHistogram.upperBound(bucket);
+            assertEquals(OracleLatencyHistogram.bucket(lower), bucket, "lower bound of " + bucket);
+            assertEquals(OracleLatencyHistogram.bucket(upper), bucket, "upper bound of " + bucket);
+            if (bucket > 0) {
+                assertEquals(lower, OracleLatencyHistogram.upperBound(bucket - 1) + 1, "gap before " + bucket);
+            }
+            if (bucket >= 16) {
+                assertTrue((upper - lower + 1) * 8 <= lower, "bucket " + bucket + " wider than 1/8 of its values");
+            }
+        }
+    }
+
+    public void testHugeDurationsLandInTheLastBucket() {
+        long largestTracked = OracleLatencyHistogram.upperBound(LAST_BUCKET);
+        assertEquals(OracleLatencyHistogram.bucket(largestTracked + 1), LAST_BUCKET);
+        assertEquals(OracleLatencyHistogram.bucket(largestTracked), LAST_BUCKET);
+    }
+
+    public void testPercentileOfTheIntervalBetweenSnapshots() {
+        OracleLatencyHistogram histogram = new OracleLatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(1000000);
+        }
+        long[] previous = histogram.snapshot();
+        assertTrue(Double.isNaN(OracleLatencyHistogram.percentile(previous, previous, 0.5)));
+
+        for (int micros = 1; micros <= 100; micros++) {
+            histogram.record(micros);
+        }
+        long[] current = histogram.snapshot();
+        assertEquals(OracleLatencyHistogram.count(current, previous), 100);
+        assertEquals(OracleLatencyHistogram.percentile(current, previous, 0.5), 50, 50 / 8d);
+        assertEquals(OracleLatencyHistogram.percentile(current, previous, 0.99), 99, 99 / 8d);
+        assertEquals(OracleLatencyHistogram.count(current, null), 1100);
+    }
+}
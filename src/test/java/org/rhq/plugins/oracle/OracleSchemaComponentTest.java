@@ -0,0 +1,57 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.plugins.oracle;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+@Test
+public class OracleSchemaComponentTest {
+
+    public void testQueries() {
+        assertTrue(OracleSchemaComponent.isQuery("SELECT * FROM dual"));
+        assertTrue(OracleSchemaComponent.isQuery("select 1 from dual"));
+        assertTrue(OracleSchemaComponent.isQuery("SELECT\n * FROM dual"));
+        assertTrue(OracleSchemaComponent.isQuery("select\r\n1 from dual"));
+        assertTrue(OracleSchemaComponent.isQuery("SELECT\t*\tFROM dual"));
+        assertTrue(OracleSchemaComponent.isQuery("SELECT*FROM dual"));
+        assertTrue(OracleSchemaComponent.isQuery("WITH\nx AS (SELECT 1 FROM dual) SELECT * FROM x"));
+        assertTrue(OracleSchemaComponent.isQuery("with x as (select 1 from dual) select * from x"));
+    }
+
+    public void testQueriesAfterCommentsAndParentheses() {
+        assertTrue(OracleSchemaComponent.isQuery("  -- tablespaces\n  SELECT\n * FROM dba_tablespaces"));
+        assertTrue(OracleSchemaComponent.isQuery("/* tablespaces */SELECT * FROM dba_tablespaces"));
+        assertTrue(OracleSchemaComponent.isQuery("/* a */ -- b\r\n (\n(select 1 from dual))"));
+    }
+
+    public void testOtherStatements() {
+        assertFalse(OracleSchemaComponent.isQuery(null));
+        assertFalse(OracleSchemaComponent.isQuery(""));
+        assertFalse(OracleSchemaComponent.isQuery("-- SELECT 1 FROM dual"));
+        assertFalse(OracleSchemaComponent.isQuery("/* SELECT */ DELETE FROM t"));
+        assertFalse(OracleSchemaComponent.isQuery("DROP TABLE t"));
+        assertFalse(OracleSchemaComponent.isQuery("SELECTED_ROWS"));
+        assertFalse(OracleSchemaComponent.isQuery("select_1"));
+        assertFalse(OracleSchemaComponent.isQuery("WITHDRAW"));
+        assertFalse(OracleSchemaComponent.isQuery("BEGIN SELECT 1 INTO x FROM dual; END;"));
+    }
+}